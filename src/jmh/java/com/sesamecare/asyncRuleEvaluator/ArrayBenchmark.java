@@ -0,0 +1,102 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * "in" over large arrays, both constant lists in the expression and lists from the input data,
+ * and the set functions union, intersection, difference and unique
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArrayBenchmark {
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private FiltrexExecutor constantIn;
+    private FiltrexExecutor dataIn;
+    private FiltrexExecutor subset;
+    private FiltrexExecutor union;
+    private FiltrexExecutor intersection;
+    private FiltrexExecutor difference;
+    private FiltrexExecutor unique;
+    private Map<String, Value> data;
+
+    @Setup
+    public void setup() {
+        var literal = new StringBuilder();
+        var evens = new ArrayList<Value>(size);
+        var odds = new ArrayList<Value>(size);
+        for (int i = 0; i < size; i++) {
+            literal.append(i == 0 ? "" : ", ").append(i * 2);
+            evens.add(new Value(i * 2));
+            odds.add(new Value(i * 2 + 1));
+        }
+        constantIn = new FiltrexExecutor("x in (" + literal + ")");
+        dataIn = new FiltrexExecutor("x in evens");
+        subset = new FiltrexExecutor("few in evens");
+        union = new FiltrexExecutor("length(union(evens, odds))");
+        intersection = new FiltrexExecutor("length(intersection(evens, odds, evens))");
+        difference = new FiltrexExecutor("length(difference(evens, odds))");
+        unique = new FiltrexExecutor("length(unique(evens, evens))");
+        data = Map.of(
+                // The last element, so scans go all the way
+                "x", new Value((size - 1) * 2),
+                "few", new Value(evens.subList(Math.max(0, size - 3), size)),
+                "evens", new Value(evens),
+                "odds", new Value(odds)
+        );
+    }
+
+    @Benchmark
+    public Value constantIn() {
+        return constantIn.run(data);
+    }
+
+    @Benchmark
+    public Value dataIn() {
+        return dataIn.run(data);
+    }
+
+    @Benchmark
+    public Value subset() {
+        return subset.run(data);
+    }
+
+    @Benchmark
+    public Value union() {
+        return union.run(data);
+    }
+
+    @Benchmark
+    public Value intersection() {
+        return intersection.run(data);
+    }
+
+    @Benchmark
+    public Value difference() {
+        return difference.run(data);
+    }
+
+    @Benchmark
+    public Value unique() {
+        return unique.run(data);
+    }
+}
@@ -0,0 +1,50 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of turning rule text into an executor: parsing and compiling it, generating a class
+ * for it, and fetching it from the shared cache
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompileBenchmark {
+    @Param({
+            "foo > 5",
+            "user.age >= 18 and state in (\"CA\", \"NY\", \"WA\") and not user.banned",
+            "(abs(profit) > 20.5 or transactions <= 5) ? lower(user.name) ~= \"^a\" : length(union(a, b)) * 2 ^ 3"
+    })
+    public String expression;
+
+    private static final FiltrexOptions GENERATE = FiltrexOptions.DEFAULT.withCompileThreshold(0);
+
+    @Benchmark
+    public FiltrexExecutor construct() {
+        return new FiltrexExecutor(expression);
+    }
+
+    @Benchmark
+    public FiltrexExecutor constructGenerated() {
+        return new FiltrexExecutor(expression, GENERATE);
+    }
+
+    @Benchmark
+    public FiltrexExecutor cached() {
+        return FiltrexExecutor.compile(expression);
+    }
+}
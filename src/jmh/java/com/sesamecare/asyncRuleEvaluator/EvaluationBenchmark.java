@@ -0,0 +1,93 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Running already compiled expressions against flat and nested input data, interpreted and as a
+ * generated class
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluationBenchmark {
+    /**
+     * {@link FiltrexOptions#NEVER} to interpret, 0 to generate a class up front
+     */
+    @Param({"-1", "0"})
+    public int compileThreshold;
+
+    private FiltrexExecutor flat;
+    private FiltrexExecutor nested;
+    private FiltrexExecutor arithmetic;
+    private FiltrexExecutor regex;
+    private FiltrexExecutor dynamicRegex;
+    private Map<String, Value> flatData;
+    private Map<String, Value> nestedData;
+
+    @Setup
+    public void setup() {
+        var options = FiltrexOptions.DEFAULT.withCompileThreshold(compileThreshold);
+        flat = new FiltrexExecutor("age >= 18 and state == \"CA\" and score > 700", options);
+        nested = new FiltrexExecutor("user.profile.age >= 18 and user.address.state == \"CA\" and user.credit.score > 700", options);
+        arithmetic = new FiltrexExecutor("(price * quantity - discount) / quantity > 9.5 and quantity % 2 == 0", options);
+        regex = new FiltrexExecutor("email ~= \"@example[.]com$\"", options);
+        dynamicRegex = new FiltrexExecutor("email ~= pattern", options);
+
+        flatData = Map.of(
+                "age", new Value(30),
+                "state", new Value("CA"),
+                "score", new Value(720),
+                "price", new Value(12.25),
+                "quantity", new Value(4),
+                "discount", new Value(3),
+                "email", new Value("someone@example.com"),
+                "pattern", new Value("@example[.]com$")
+        );
+        nestedData = Map.of("user", new Value(Map.of(
+                "profile", new Value(Map.of("age", new Value(30))),
+                "address", new Value(Map.of("state", new Value("CA"))),
+                "credit", new Value(Map.of("score", new Value(720)))
+        )));
+    }
+
+    @Benchmark
+    public Value flat() {
+        return flat.run(flatData);
+    }
+
+    @Benchmark
+    public Value nested() {
+        return nested.run(nestedData);
+    }
+
+    @Benchmark
+    public Value arithmetic() {
+        return arithmetic.run(flatData);
+    }
+
+    @Benchmark
+    public Value literalRegex() {
+        return regex.run(flatData);
+    }
+
+    @Benchmark
+    public Value dynamicRegex() {
+        return dynamicRegex.run(flatData);
+    }
+}
@@ -0,0 +1,63 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resolving lazy input data. Memoized values keep their result once resolved, so those
+ * benchmarks build a fresh context for every run, as each request would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LazyValueBenchmark {
+    private static final Value USER = new Value(Map.of("age", new Value(30), "plan", new Value("gold")));
+
+    private FiltrexExecutor executor;
+    private FiltrexExecutor call;
+    private Map<String, Value> functions;
+
+    @Setup
+    public void setup() {
+        executor = new FiltrexExecutor("user.age >= 18 and user.plan == \"gold\"");
+        call = new FiltrexExecutor("discount(user.age) > 5");
+        functions = Map.of(
+                "user", Value.func(args -> USER),
+                "discount", Value.func(args -> new Value(args.get(0).asDecimal().intValue() / 3))
+        );
+    }
+
+    @Benchmark
+    public Value memoized() {
+        return executor.run(Map.of("user", Value.memoized(args -> USER)));
+    }
+
+    @Benchmark
+    public Value func() {
+        return executor.run(functions);
+    }
+
+    @Benchmark
+    public Value functionCall() {
+        return call.run(functions);
+    }
+
+    @Benchmark
+    public Value scoped() {
+        return executor.run(functions, new FiltrexScope());
+    }
+}
@@ -0,0 +1,65 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads sharing one executor, one rule set and one context, as a server would.
+ * Run with -t to change the number of threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(Threads.MAX)
+@Fork(1)
+public class ThroughputBenchmark {
+    private FiltrexExecutor executor;
+    private FiltrexRuleSet rules;
+    private Map<String, Value> data;
+
+    @Setup
+    public void setup() {
+        executor = new FiltrexExecutor("user.age >= 18 and state in (\"CA\", \"NY\") and score > 700");
+        var ruleText = new LinkedHashMap<String, String>();
+        ruleText.put("adult", "user.age >= 18");
+        ruleText.put("coastal", "user.age >= 18 and state in (\"CA\", \"NY\")");
+        ruleText.put("prime", "user.age >= 18 and score > 700");
+        ruleText.put("texan", "state == \"TX\" and score > 600");
+        rules = new FiltrexRuleSet(ruleText);
+        data = Map.of(
+                "user", new Value(Map.of("age", new Value(30))),
+                "state", new Value("CA"),
+                "score", new Value(720)
+        );
+    }
+
+    @Benchmark
+    public Value executor() {
+        return executor.run(data);
+    }
+
+    @Benchmark
+    public Map<String, Value> ruleSet() {
+        return rules.run(data);
+    }
+
+    @Benchmark
+    public Value scoped() {
+        return executor.run(data, new FiltrexScope());
+    }
+}
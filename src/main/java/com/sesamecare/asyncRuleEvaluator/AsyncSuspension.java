@@ -0,0 +1,20 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Thrown during an asynchronous run when the expression needs an async value that
+ * has not completed yet. The run is abandoned and retried once the future completes.
+ * It never escapes {@link FiltrexExecutor}.
+ */
+class AsyncSuspension extends RuntimeException {
+    final Value value;
+    final CompletableFuture<Value> future;
+
+    AsyncSuspension(Value value, CompletableFuture<Value> future) {
+        // No stack trace, this is control flow rather than an error
+        super("Waiting for an async value", null, false, false);
+        this.value = value;
+        this.future = future;
+    }
+}
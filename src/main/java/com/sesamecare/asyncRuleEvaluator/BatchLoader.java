@@ -0,0 +1,104 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Coalesces point lookups into bulk lookups. Each call to {@link #load(Object)} returns
+ * a lazy value for one key; keys are queued as those values are needed, and a single
+ * bulk call is made for every key queued since the last one when the loader is dispatched.
+ * <p>
+ * {@link FiltrexExecutor#runBatch(List)} dispatches once all of the evaluations in the batch
+ * are waiting, so evaluating a rule for hundreds of contexts costs one bulk call per "level"
+ * of lookups rather than one call per context. Other kinds of runs dispatch as soon as they need a value.
+ * <p>
+ * Example usage:
+ * <pre>
+ * var users = new BatchLoader&lt;String&gt;(ids -&gt; userService.fetchAll(ids));
+ * var contexts = ids.stream().map(id -&gt; Map.of("user", users.load(id))).toList();
+ * var results = new FiltrexExecutor("user.plan == \"gold\"").runBatch(contexts);
+ * </pre>
+ * Results are cached by key for the lifetime of the loader, so a loader is normally created per request.
+ * @param <K> the key type, which must have a consistent hashCode and equals
+ */
+public class BatchLoader<K> {
+    private final Function<List<K>, CompletableFuture<Map<K, Value>>> bulkLoad;
+    private final Map<K, CompletableFuture<Value>> futures = new HashMap<>();
+    private List<K> queued = new ArrayList<>();
+
+    /**
+     * @param bulkLoad looks up many keys at once. Keys missing from the resulting map become null values.
+     *                 If it throws, or returns a null future or map, the values of every key in the batch fail.
+     */
+    public BatchLoader(Function<List<K>, CompletableFuture<Map<K, Value>>> bulkLoad) {
+        this.bulkLoad = bulkLoad;
+    }
+
+    /**
+     * Create a lazy value for one key. Nothing is looked up until the value is needed and the loader is dispatched.
+     * @param key the key to look up
+     * @return a new Value
+     */
+    public Value load(K key) {
+        return Value.async(args -> enqueue(key), this::dispatch);
+    }
+
+    private synchronized CompletableFuture<Value> enqueue(K key) {
+        var future = futures.get(key);
+        if (future == null) {
+            future = new CompletableFuture<>();
+            futures.put(key, future);
+            queued.add(key);
+        }
+        return future;
+    }
+
+    /**
+     * Look up every queued key with a single bulk call. Does nothing if no keys are queued.
+     */
+    public void dispatch() {
+        List<K> keys;
+        Map<K, CompletableFuture<Value>> batch = new HashMap<>();
+        synchronized (this) {
+            if (queued.isEmpty()) {
+                return;
+            }
+            keys = queued;
+            queued = new ArrayList<>();
+            for (var key : keys) {
+                batch.put(key, futures.get(key));
+            }
+        }
+        CompletableFuture<Map<K, Value>> results;
+        try {
+            results = bulkLoad.apply(keys);
+            if (results == null) {
+                throw new IllegalStateException("Bulk load returned no future");
+            }
+        } catch (RuntimeException e) {
+            results = CompletableFuture.failedFuture(e);
+        }
+        results.whenComplete((values, error) -> {
+            // Every waiting run hangs unless its future completes, so nothing may escape this callback
+            try {
+                var failure = error == null && values == null ? new IllegalStateException("Bulk load returned no map") : error;
+                for (var entry : batch.entrySet()) {
+                    if (failure != null) {
+                        entry.getValue().completeExceptionally(failure);
+                    } else {
+                        var value = values.get(entry.getKey());
+                        entry.getValue().complete(value == null ? Value.NULL : value);
+                    }
+                }
+            } catch (Throwable t) {
+                for (var future : batch.values()) {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+    }
+}
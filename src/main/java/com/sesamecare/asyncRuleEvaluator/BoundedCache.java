@@ -0,0 +1,113 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A thread-safe cache bounded by entry count and total weight. Hits are lock free;
+ * only inserts take a lock. Eviction uses the "second chance" (CLOCK) approximation
+ * of LRU: an entry that was read since the eviction sweep last passed it is kept
+ * for one more round.
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+class BoundedCache<K, V> {
+    private static final class Entry<K, V> {
+        final K key;
+        final V value;
+        final long weight;
+        volatile boolean referenced;
+
+        Entry(K key, V value, long weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private final ConcurrentHashMap<K, Entry<K, V>> map = new ConcurrentHashMap<>();
+    private final ArrayDeque<Entry<K, V>> clock = new ArrayDeque<>();
+    private final int maximumSize;
+    private final long maximumWeight;
+    private final ToLongFunction<V> weigher;
+    private long totalWeight;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maximumSize the maximum number of entries
+     * @param maximumWeight the maximum total weight of all entries
+     * @param weigher computes the weight of a value when it is added
+     */
+    BoundedCache(int maximumSize, long maximumWeight, ToLongFunction<V> weigher) {
+        if (maximumSize <= 0 || maximumWeight <= 0) {
+            throw new IllegalArgumentException("Cache limits must be positive");
+        }
+        this.maximumSize = maximumSize;
+        this.maximumWeight = maximumWeight;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Return the cached value for the key, or compute and cache it. The loader runs outside
+     * of any lock, so two threads missing on the same key at once may both run it; the
+     * first value to be inserted wins and is returned to both.
+     * @param key the cache key
+     * @param loader computes the value on a miss
+     * @return the cached or computed value
+     */
+    V get(K key, Function<K, V> loader) {
+        var entry = map.get(key);
+        if (entry != null) {
+            entry.referenced = true;
+            hits.increment();
+            return entry.value;
+        }
+        misses.increment();
+        var value = loader.apply(key);
+        synchronized (this) {
+            var existing = map.get(key);
+            if (existing != null) {
+                return existing.value;
+            }
+            var added = new Entry<>(key, value, weigher.applyAsLong(value));
+            map.put(key, added);
+            clock.addLast(added);
+            totalWeight += added.weight;
+            evict();
+        }
+        return value;
+    }
+
+    private void evict() {
+        while (!clock.isEmpty() && (clock.size() > maximumSize || totalWeight > maximumWeight)) {
+            var candidate = clock.pollFirst();
+            if (candidate.referenced) {
+                candidate.referenced = false;
+                clock.addLast(candidate);
+            } else {
+                map.remove(candidate.key);
+                totalWeight -= candidate.weight;
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Remove every entry. Statistics are not reset.
+     */
+    synchronized void clear() {
+        map.clear();
+        clock.clear();
+        totalWeight = 0;
+    }
+
+    CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), map.size());
+    }
+}
@@ -4,66 +4,91 @@ import java.math.BigDecimal;
 import java.math.MathContext;
 import java.math.RoundingMode;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
 
 class BuiltInFunctions {
     static MathContext mathContext = new MathContext(4, RoundingMode.HALF_UP);
-    public static Value execute(String fn, List<Value> args) {
-        switch (fn) {
-            case "abs":
-                return new Value(args.get(0).asDecimal().abs());
-            case "ceil":
-                return new Value(args.get(0).asDecimal().setScale(0, RoundingMode.CEILING));
-            case "floor":
-                return new Value(args.get(0).asDecimal().setScale(0, RoundingMode.FLOOR));
-            case "round":
-                return new Value(args.get(0).asDecimal().setScale(0, RoundingMode.HALF_UP));
-            case "sqrt":
-                return new Value(args.get(0).asDecimal().sqrt(mathContext));
-            case "min":
-                return best(args, -1);
-            case "max":
-                return best(args, 1);
-            case "random":
-                if (args.size() == 0) {
-                    return new Value(BigDecimal.valueOf(Math.random()));
-                }
-                return new Value(
-                        BigDecimal.valueOf(
-                                Math.random()).multiply(args.get(0).asDecimal()
-                        ).setScale(0, RoundingMode.HALF_UP));
-            case "length":
-                switch (args.get(0).getType()) {
-                    case ARRAY:
-                        return new Value(args.get(0).getArray().size());
-                    case STRING:
-                        return new Value(args.get(0).toString().length());
-                    case NULL:
-                        return new Value(0);
-                    case MAP:
-                        return new Value(args.get(0).getMap().size());
-                    case DECIMAL:
-                        return new Value(args.get(0).asDecimal().toString().length());
-                    case BOOLEAN:
-                        // I guess? true is 4, false is 5...
-                        return new Value(args.get(0).asBoolean() ? 4 : 5);
-                }
-                break;
-            case "lower":
-                return new Value(args.get(0).toString().toLowerCase());
-            case "substr":
-                return substr(
+
+    /**
+     * Add the built-in functions to a registry
+     * @param registry an empty registry
+     * @return the registry with the built-in functions
+     */
+    static FunctionRegistry register(FunctionRegistry registry) {
+        return registry
+                .with(pure("abs", 1, 1, (args, mode) -> abs(args.get(0))))
+                .with(pure("ceil", 1, 1, (args, mode) -> round(args.get(0), RoundingMode.CEILING)))
+                .with(pure("floor", 1, 1, (args, mode) -> round(args.get(0), RoundingMode.FLOOR)))
+                .with(pure("round", 1, 1, (args, mode) -> round(args.get(0), RoundingMode.HALF_UP)))
+                .with(pure("sqrt", 1, 1, (args, mode) -> mode.sqrt(args.get(0))))
+                .with(pure("min", 0, FunctionRegistry.UNLIMITED, (args, mode) -> best(args, -1)))
+                .with(pure("max", 0, FunctionRegistry.UNLIMITED, (args, mode) -> best(args, 1)))
+                .with(new FunctionRegistry.Definition("random", 0, 1, false, (args, mode) -> random(args)))
+                .with(pure("length", 1, 1, (args, mode) -> length(args.get(0))))
+                .with(pure("lower", 1, 1, (args, mode) -> new Value(args.get(0).toString().toLowerCase())))
+                .with(pure("substr", 1, 3, (args, mode) -> substr(
                         args.get(0).toString(),
                         args.size() > 1 ? args.get(1) : null,
                         args.size() > 2 ? args.get(2) : null
-                );
-            case "union":
-            case "intersection":
-            case "difference":
-            case "unique":
-                return setOp(fn, args);
+                )))
+                .with(pure("union", 0, FunctionRegistry.UNLIMITED, (args, mode) -> setOp("union", args)))
+                .with(pure("intersection", 0, FunctionRegistry.UNLIMITED, (args, mode) -> setOp("intersection", args)))
+                .with(pure("difference", 0, FunctionRegistry.UNLIMITED, (args, mode) -> setOp("difference", args)))
+                .with(pure("unique", 0, FunctionRegistry.UNLIMITED, (args, mode) -> setOp("unique", args)));
+    }
+
+    private static FunctionRegistry.Definition pure(String name, int minArgs, int maxArgs,
+                                                    BiFunction<List<Value>, NumericMode, Value> body) {
+        return new FunctionRegistry.Definition(name, minArgs, maxArgs, true, body);
+    }
+
+    static Value abs(Value value) {
+        if (value.isLong() && value.longValue() != Long.MIN_VALUE) {
+            return Value.of(Math.abs(value.longValue()));
+        }
+        return new Value(value.asDecimal().abs());
+    }
+
+    static Value round(Value value, RoundingMode rounding) {
+        if (value.isLong()) {
+            // Already whole, and decimals are never changed, so the argument is the result
+            return value;
         }
-        return null;
+        return Value.of(value.asDecimal().setScale(0, rounding));
+    }
+
+    static Value random(List<Value> args) {
+        if (args.size() == 0) {
+            return new Value(BigDecimal.valueOf(Math.random()));
+        }
+        return new Value(
+                BigDecimal.valueOf(
+                        Math.random()).multiply(args.get(0).asDecimal()
+                ).setScale(0, RoundingMode.HALF_UP));
+    }
+
+    static Value length(Value value) {
+        var resolved = value.resolve();
+        switch (resolved.getType()) {
+            case ARRAY:
+                return Value.of(resolved.getArray().size());
+            case STRING:
+                return Value.of(resolved.toString().length());
+            case NULL:
+                return Value.of(0);
+            case MAP:
+                return Value.of(resolved.getMap().size());
+            case DECIMAL:
+                return Value.of(resolved.asDecimal().toString().length());
+            case BOOLEAN:
+                // I guess? true is 4, false is 5...
+                return Value.of(resolved.asBoolean() ? 4 : 5);
+        }
+        throw new FiltrexRuntimeException("Invalid argument to length");
     }
 
     static Value substr(String s, Value start, Value chars) {
@@ -79,21 +104,110 @@ class BuiltInFunctions {
         if (args.size() == 0) {
             return Value.NULL;
         }
+        int bestIndex = 0;
         BigDecimal best = args.get(0).asDecimal();
         for (int i = 1; i < args.size(); i++) {
             BigDecimal current = args.get(i).asDecimal();
             if (current.compareTo(best) * sign > 0) {
                 best = current;
+                bestIndex = i;
             }
         }
-        return new Value(best);
+        // A decimal argument can be returned as is, anything else is converted
+        var winner = args.get(bestIndex);
+        return winner.getType() == ValueType.DECIMAL ? winner : new Value(best);
+    }
+
+    /**
+     * Answers e.in(set, true) for many values of e. When every value involved has a
+     * {@link #scalarKey} that is a hash lookup, otherwise it falls back to a scan with {@link Value#in}.
+     */
+    private static final class Members {
+        private final Value set;
+        private final Set<String> hashed;
+
+        Members(Value set) {
+            this.set = set;
+            Set<String> keys = new HashSet<>();
+            for (var e : set.asArray()) {
+                var key = scalarKey(e);
+                if (key == null) {
+                    keys = null;
+                    break;
+                }
+                keys.add(key);
+            }
+            this.hashed = keys;
+        }
+
+        boolean contains(Value e) {
+            var key = hashed != null ? scalarKey(e) : null;
+            if (key != null) {
+                return hashed.contains(key);
+            }
+            return e.in(set, true) == Value.TRUE;
+        }
+    }
+
+    /**
+     * @return a key that is equal for two booleans, strings or decimals exactly when an exact "in"
+     * matches them, or null for other values and for strings "in" cannot compare, such as "NaN"
+     */
+    private static String scalarKey(Value v) {
+        return switch (v.getType()) {
+            case BOOLEAN -> v.asBoolean() ? "true" : "false";
+            case STRING, DECIMAL -> Value.hashKey(v, true);
+            default -> null;
+        };
+    }
+
+    /**
+     * @return a {@link #scalarKey}, extended to null and to arrays and maps by their contents, or
+     * null for values that have none, such as unresolved lazy values
+     */
+    private static String uniqueKey(Value v) {
+        switch (v.getType()) {
+            case NULL:
+                return "null";
+            case ARRAY: {
+                var key = new StringBuilder("[");
+                for (var e : v.getArray()) {
+                    if (!appendKey(key, uniqueKey(e))) {
+                        return null;
+                    }
+                }
+                return key.append(']').toString();
+            }
+            case MAP: {
+                var key = new StringBuilder("{");
+                for (var entry : new TreeMap<>(v.getMap()).entrySet()) {
+                    if (!appendKey(key, entry.getKey()) || !appendKey(key, uniqueKey(entry.getValue()))) {
+                        return null;
+                    }
+                }
+                return key.append('}').toString();
+            }
+            default:
+                return scalarKey(v);
+        }
+    }
+
+    /**
+     * Append a key with its length, so that keys made of several parts cannot run into each other
+     */
+    private static boolean appendKey(StringBuilder key, String part) {
+        if (part == null) {
+            return false;
+        }
+        key.append(part.length()).append(':').append(part);
+        return true;
     }
 
     static Value union(Value s1, Value s2) {
         var first = new ArrayList<>(s1.asArray());
-        var other = s2.asArray();
-        for (var e : other) {
-            if (e.in(s1, true) == Value.FALSE) {
+        var members = new Members(s1);
+        for (var e : s2.asArray()) {
+            if (!members.contains(e)) {
                 first.add(e);
             }
         }
@@ -102,9 +216,9 @@ class BuiltInFunctions {
 
     static Value intersection(Value s1, Value s2) {
         var intersection = new ArrayList<Value>();
-        var other = s2.asArray();
-        for (var e : other) {
-            if (e.in(s1, true) == Value.TRUE) {
+        var members = new Members(s1);
+        for (var e : s2.asArray()) {
+            if (members.contains(e)) {
                 intersection.add(e);
             }
         }
@@ -112,13 +226,36 @@ class BuiltInFunctions {
     }
 
     static Value difference(Value s1, Value s2) {
-        return new Value(s1.asArray().stream().filter(e -> e.in(s2, true) == Value.FALSE).toList());
+        var members = new Members(s2);
+        return new Value(s1.asArray().stream().filter(e -> !members.contains(e)).toList());
+    }
+
+    /**
+     * @return the elements of all of the arrays, in order, keeping only the first of any elements
+     * an exact "in" would match (compared by content for arrays and maps). Elements with no
+     * {@link #uniqueKey}, such as unresolved lazy values, are always kept.
+     */
+    static Value unique(List<Value> args) {
+        var seen = new HashSet<String>();
+        var unique = new ArrayList<Value>();
+        for (var arg : args) {
+            for (var e : arg.asArray()) {
+                var key = uniqueKey(e);
+                if (key == null || seen.add(key)) {
+                    unique.add(e);
+                }
+            }
+        }
+        return new Value(unique);
     }
 
     static Value setOp(String op, List<Value> args) {
         if (args.size() == 0) {
             return Value.NULL;
         }
+        if ("unique".equals(op)) {
+            return unique(args);
+        }
         Value first = args.get(0);
         for (int i = 1; i < args.size(); i++) {
             switch (op) {
@@ -0,0 +1,18 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+/**
+ * A point in time snapshot of the statistics of one of the internal caches
+ * @param hitCount the number of lookups that found a cached entry
+ * @param missCount the number of lookups that had to compute a new entry
+ * @param evictionCount the number of entries removed to stay within the cache limits
+ * @param size the number of entries currently cached
+ */
+public record CacheStats(long hitCount, long missCount, long evictionCount, long size) {
+    /**
+     * @return the fraction of lookups that were hits, or 1 if there were no lookups
+     */
+    public double hitRate() {
+        var total = hitCount + missCount;
+        return total == 0 ? 1.0 : (double) hitCount / total;
+    }
+}
@@ -0,0 +1,197 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Reorders the terms of "and" and "or" chains so that cheap terms run first, letting the
+ * short-circuit skip the expensive ones (usually lookups of lazy values) whenever a cheap
+ * term already decides the result. Enabled with {@link FiltrexOptions#withClauseReordering}.
+ * <p>
+ * The cost of a term is estimated from its shape: literals are free, a symbol the schema declares
+ * with a resolved type costs one, a symbol the schema declares as a function, memoized or async
+ * value costs {@link #LAZY}, and so does calling a function from the input data. Terms that may
+ * have side effects are never moved, and no other term is moved across them: calls to functions
+ * that are not pure, symbols the schema declares as functions or async values, and any symbol
+ * when there is no schema, since it may be a {@link Value#func} that is called on every read.
+ * A field declared with a resolved type is trusted to hold one, even though a context accepts
+ * lazy values for it. Terms of equal cost keep their written order.
+ */
+class ClauseOrderer {
+    /**
+     * The estimated cost of looking up or calling a lazy value
+     */
+    static final int LAZY = 100;
+
+    /**
+     * @param node a compiled tree, bound to the schema if there is one
+     * @param schema the schema the tree is bound to, or null
+     * @return the reordered tree, which may be the same node
+     */
+    static FiltrexNode reorder(FiltrexNode node, FiltrexSchema schema) {
+        if (node instanceof FiltrexNode.And || node instanceof FiltrexNode.Or) {
+            var terms = new ArrayList<FiltrexNode>();
+            terms(node, node.getClass(), terms);
+            for (int i = 0; i < terms.size(); i++) {
+                terms.set(i, reorder(terms.get(i), schema));
+            }
+            sort(terms, schema);
+            var chain = terms.get(0);
+            for (int i = 1; i < terms.size(); i++) {
+                chain = node instanceof FiltrexNode.And ? new FiltrexNode.And(chain, terms.get(i)) : new FiltrexNode.Or(chain, terms.get(i));
+            }
+            return chain;
+        }
+        var children = node.children();
+        if (children.length == 0) {
+            return node;
+        }
+        var reordered = new FiltrexNode[children.length];
+        var changed = false;
+        for (int i = 0; i < children.length; i++) {
+            reordered[i] = reorder(children[i], schema);
+            changed |= reordered[i] != children[i];
+        }
+        return changed ? node.withChildren(reordered) : node;
+    }
+
+    /**
+     * Replace each run of two or more pure terms in the "and" and "or" chains of a tree with a
+     * {@link FiltrexNode.Adaptive} node that reorders them as it is run. Enabled with
+     * {@link FiltrexOptions#withAdaptiveReordering}.
+     * @param node a compiled tree, bound to the schema if there is one
+     * @param schema the schema the tree is bound to, or null
+     * @param interval the number of profiled evaluations between plans
+     * @return the rewritten tree, which may be the same node
+     */
+    static FiltrexNode adapt(FiltrexNode node, FiltrexSchema schema, int interval) {
+        if (node instanceof FiltrexNode.And || node instanceof FiltrexNode.Or) {
+            var and = node instanceof FiltrexNode.And;
+            var terms = new ArrayList<FiltrexNode>();
+            terms(node, node.getClass(), terms);
+            var grouped = new ArrayList<FiltrexNode>();
+            int start = 0;
+            for (int i = 0; i <= terms.size(); i++) {
+                if (i == terms.size() || !pure(terms.get(i), schema)) {
+                    var run = terms.subList(start, i);
+                    run.replaceAll(term -> adapt(term, schema, interval));
+                    if (run.size() > 1) {
+                        grouped.add(new FiltrexNode.Adaptive(and, run.toArray(new FiltrexNode[0]), interval));
+                    } else {
+                        grouped.addAll(run);
+                    }
+                    if (i < terms.size()) {
+                        grouped.add(adapt(terms.get(i), schema, interval));
+                    }
+                    start = i + 1;
+                }
+            }
+            var chain = grouped.get(0);
+            for (int i = 1; i < grouped.size(); i++) {
+                chain = and ? new FiltrexNode.And(chain, grouped.get(i)) : new FiltrexNode.Or(chain, grouped.get(i));
+            }
+            return chain;
+        }
+        var children = node.children();
+        if (children.length == 0) {
+            return node;
+        }
+        var adapted = new FiltrexNode[children.length];
+        var changed = false;
+        for (int i = 0; i < children.length; i++) {
+            adapted[i] = adapt(children[i], schema, interval);
+            changed |= adapted[i] != children[i];
+        }
+        return changed ? node.withChildren(adapted) : node;
+    }
+
+    /**
+     * Flatten a chain of the same operator, such as a and (b and c), into its terms
+     */
+    private static void terms(FiltrexNode node, Class<?> operator, List<FiltrexNode> terms) {
+        if (node.getClass() == operator) {
+            var children = node.children();
+            terms(children[0], operator, terms);
+            terms(children[1], operator, terms);
+        } else {
+            terms.add(node);
+        }
+    }
+
+    private record Term(FiltrexNode node, long cost) {}
+
+    /**
+     * Stable sort by cost within each run of terms between impure ones
+     */
+    private static void sort(List<FiltrexNode> terms, FiltrexSchema schema) {
+        var costed = new ArrayList<Term>(terms.size());
+        for (var term : terms) {
+            costed.add(new Term(term, cost(term, schema)));
+        }
+        int start = 0;
+        for (int i = 0; i <= costed.size(); i++) {
+            if (i == costed.size() || !pure(costed.get(i).node(), schema)) {
+                // List.sort is stable
+                costed.subList(start, i).sort(Comparator.comparingLong(Term::cost));
+                start = i + 1;
+            }
+        }
+        for (int i = 0; i < terms.size(); i++) {
+            terms.set(i, costed.get(i).node());
+        }
+    }
+
+    /**
+     * @return true if evaluating the node calls no functions that may have side effects
+     */
+    static boolean pure(FiltrexNode node, FiltrexSchema schema) {
+        if (node instanceof FiltrexNode.FunctionCall call && !call.isPure()) {
+            return false;
+        }
+        if (node instanceof FiltrexNode.Symbol symbol) {
+            if (symbol.slot < 0 || schema == null) {
+                return false;
+            }
+            var type = schema.type(symbol.slot);
+            return type != ValueType.FUNCTION && type != ValueType.ASYNC;
+        }
+        for (var child : node.children()) {
+            if (!pure(child, schema)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the estimated cost of evaluating the node
+     */
+    static long cost(FiltrexNode node, FiltrexSchema schema) {
+        long cost;
+        if (node instanceof FiltrexNode.Literal) {
+            return 0;
+        } else if (node instanceof FiltrexNode.Symbol symbol) {
+            return symbolCost(symbol.slot, schema);
+        } else if (node instanceof FiltrexNode.FunctionCall call) {
+            cost = call.function != null ? 1 : LAZY;
+        } else {
+            cost = 1;
+        }
+        for (var child : node.children()) {
+            cost += cost(child, schema);
+        }
+        return cost;
+    }
+
+    /**
+     * Without a schema, any symbol may be a lazy value
+     */
+    private static long symbolCost(int slot, FiltrexSchema schema) {
+        if (slot < 0 || schema == null) {
+            return LAZY;
+        }
+        var type = schema.type(slot);
+        return type == ValueType.FUNCTION || type == ValueType.MEMOIZED || type == ValueType.ASYNC ? LAZY : 1;
+    }
+}
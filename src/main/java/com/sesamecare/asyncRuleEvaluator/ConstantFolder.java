@@ -0,0 +1,106 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simplifies a compiled tree before it is first run. Sub-trees built only from literals
+ * (2 * 60 * 60, 1 == 1, abs(-3), [1, 2, 3]) are evaluated once and replaced by their result,
+ * and ternaries with a constant condition are replaced by the branch they always take.
+ * <p>
+ * Symbols, random() and functions that are not registered as pure are never folded. Neither is anything
+ * that fails, such as 1 / 0, so errors are still raised when the expression runs.
+ */
+class ConstantFolder {
+    private static final EvaluationState NO_INPUT = new EvaluationState(Map.of(), false);
+
+    /**
+     * @param node a compiled tree
+     * @return the simplified tree, which may be the same node
+     * @throws IllegalArgumentException if the tree is incomplete
+     */
+    static FiltrexNode fold(FiltrexNode node) {
+        if (node == null) {
+            throw new IllegalArgumentException("Cannot fold an incomplete tree");
+        }
+        if (node instanceof FiltrexNode.FunctionCall call) {
+            return foldCall(call);
+        }
+        var children = node.children();
+        if (children.length == 0) {
+            return node;
+        }
+        var folded = new FiltrexNode[children.length];
+        var changed = false;
+        for (int i = 0; i < children.length; i++) {
+            folded[i] = fold(children[i]);
+            changed |= folded[i] != children[i];
+        }
+        var rebuilt = changed ? node.withChildren(folded) : node;
+
+        if (rebuilt instanceof FiltrexNode.Ternary ternary && constant(ternary.condition)) {
+            return ((FiltrexNode.Literal) ternary.condition).value.asBoolean() ? ternary.whenTrue : ternary.whenFalse;
+        }
+        // "or" never looks at its right side when the left is true, nor "and" when it is false
+        if (rebuilt instanceof FiltrexNode.Or or && constant(or.lhs) && ((FiltrexNode.Literal) or.lhs).value.asBoolean()) {
+            return new FiltrexNode.Literal(Value.TRUE);
+        }
+        if (rebuilt instanceof FiltrexNode.And and && constant(and.lhs) && !((FiltrexNode.Literal) and.lhs).value.asBoolean()) {
+            return new FiltrexNode.Literal(Value.FALSE);
+        }
+        for (var child : folded) {
+            if (!constant(child)) {
+                return rebuilt;
+            }
+        }
+        return evaluate(rebuilt);
+    }
+
+    /**
+     * Argument lists are handed to the function being called, so they are only replaced
+     * by a shared constant when the whole call is folded
+     */
+    private static FiltrexNode foldCall(FiltrexNode.FunctionCall call) {
+        if (call.args == null) {
+            return call;
+        }
+        if (!(call.args instanceof FiltrexNode.ArrayOf list)) {
+            var args = fold(call.args);
+            return args == call.args ? call : call.withChildren(new FiltrexNode[]{args});
+        }
+        var elements = new FiltrexNode[list.elements.length];
+        var changed = false;
+        var constant = true;
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = fold(list.elements[i]);
+            changed |= elements[i] != list.elements[i];
+            constant &= constant(elements[i]);
+        }
+        var rebuilt = changed ? call.withChildren(new FiltrexNode[]{list.withChildren(elements)}) : call;
+        if (!call.isPure() || !constant) {
+            return rebuilt;
+        }
+        return evaluate(rebuilt);
+    }
+
+    private static boolean constant(FiltrexNode node) {
+        return node instanceof FiltrexNode.Literal literal && literal.value != null;
+    }
+
+    private static FiltrexNode evaluate(FiltrexNode node) {
+        Value result;
+        try {
+            result = node.evaluate(NO_INPUT);
+        } catch (RuntimeException e) {
+            return node;
+        }
+        if (result == null) {
+            return node;
+        }
+        // The folded value is shared by every run, so nothing may add to it
+        if (result.getType() == ValueType.ARRAY) {
+            result = new Value(List.copyOf(result.getArray()));
+        }
+        return new FiltrexNode.Literal(result);
+    }
+}
@@ -0,0 +1,173 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The per-run state of a compiled expression. Compiled nodes are shared between
+ * runs (and threads), so anything that varies from one run to the next lives here.
+ */
+class EvaluationState {
+    final Map<String, Value> inputData;
+    final Value[] slots;
+    final boolean suspendable;
+    final Value[] shared;
+    final FiltrexScope scope;
+
+    private static final Value[] NO_SHARED = new Value[0];
+
+    /**
+     * @param inputData the values made available to the expression
+     * @param suspendable true to throw {@link AsyncSuspension} rather than block when an async value is not ready
+     */
+    EvaluationState(Map<String, Value> inputData, boolean suspendable) {
+        this(inputData, suspendable, 0);
+    }
+
+    /**
+     * @param inputData the values made available to the expression
+     * @param suspendable true to throw {@link AsyncSuspension} rather than block when an async value is not ready
+     * @param sharedSlots the number of {@link FiltrexNode.Shared} results to hold for the run
+     */
+    EvaluationState(Map<String, Value> inputData, boolean suspendable, int sharedSlots) {
+        this(inputData, suspendable, sharedSlots, null);
+    }
+
+    /**
+     * @param inputData the values made available to the expression
+     * @param suspendable true to throw {@link AsyncSuspension} rather than block when an async value is not ready
+     * @param sharedSlots the number of {@link FiltrexNode.Shared} results to hold for the run
+     * @param scope holds the results of lazy values instead of the values themselves, or null
+     */
+    EvaluationState(Map<String, Value> inputData, boolean suspendable, int sharedSlots, FiltrexScope scope) {
+        this(inputData, null, suspendable, sharedSlots, scope);
+    }
+
+    /**
+     * @param context the values made available to an expression bound to a {@link FiltrexSchema}
+     * @param suspendable true to throw {@link AsyncSuspension} rather than block when an async value is not ready
+     * @param sharedSlots the number of {@link FiltrexNode.Shared} results to hold for the run
+     */
+    EvaluationState(FiltrexContext context, boolean suspendable, int sharedSlots) {
+        this(Map.of(), context.slots, suspendable, sharedSlots, null);
+    }
+
+    private EvaluationState(Map<String, Value> inputData, Value[] slots, boolean suspendable, int sharedSlots,
+                            FiltrexScope scope) {
+        this.inputData = inputData;
+        this.slots = slots;
+        this.suspendable = suspendable;
+        this.shared = sharedSlots == 0 ? NO_SHARED : new Value[sharedSlots];
+        this.scope = scope;
+    }
+
+    /**
+     * Make sure an async value is ready before it is used. Blocking runs simply let
+     * the value block when it is resolved, suspendable runs bail out until it completes.
+     * @param value any value
+     * @return the same value
+     * @throws AsyncSuspension if the run is suspendable and the value is an incomplete async value
+     */
+    Value await(Value value) {
+        if (suspendable && value.getType() == ValueType.ASYNC) {
+            var future = scope == null ? value.start() : scope.start(value);
+            if (!future.isDone()) {
+                throw new AsyncSuspension(value, future);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Resolve a value read from the input data, through the scope of the run if it has one
+     * @param value any value
+     * @return the resolved value
+     * @throws AsyncSuspension if the run is suspendable and the value is an incomplete async value
+     */
+    Value resolve(Value value) {
+        await(value);
+        return scope != null && value.isLazy() ? scope.resolve(value) : value.resolve();
+    }
+
+    /**
+     * Call a function from the input data, through the scope of the run if it has one
+     * @param function the value of the called symbol
+     * @param args the arguments of the call
+     * @return the result, which may itself be an async value
+     */
+    Value call(Value function, List<Value> args) {
+        return scope == null ? function.apply(args) : scope.call(function, args);
+    }
+
+    /**
+     * Find the value of a symbol, from its schema slot when the run has a {@link FiltrexContext}
+     * @param path the segments of the dotted symbol
+     * @param slot the schema slot of the symbol, or -1
+     * @return the (unresolved) value, or NULL if it is missing
+     */
+    Value lookup(String[] path, int slot) {
+        if (slot >= 0 && slots != null) {
+            var value = slots[slot];
+            return value == null ? Value.NULL : value;
+        }
+        return resolveDottedNotation(path);
+    }
+
+    /**
+     * Find the value of a symbol without resolving any lazy values
+     * @param path the segments of the dotted symbol
+     * @param slot the schema slot of the symbol, or -1
+     * @return the value, NULL if it is missing, or null if the value or anything on its path is an unresolved lazy value
+     */
+    Value peek(String[] path, int slot) {
+        if (slot < 0 || slots == null) {
+            Map<String, Value> current = inputData;
+            for (int i = 0; i < path.length - 1; i++) {
+                var value = current.get(path[i]);
+                if (value == null) {
+                    break;
+                }
+                if (value.isLazy()) {
+                    return null;
+                }
+                if (value.getType() == ValueType.MAP) {
+                    current = value.getMap();
+                }
+            }
+        }
+        var value = lookup(path, slot);
+        return value.isLazy() ? null : value;
+    }
+
+    /**
+     * Walk a pre-split symbol path through the input data, resolving lazy values
+     * along the way when they stand between us and the final segment
+     * @param paths the segments of the dotted symbol
+     * @return the (unresolved) value at the end of the path, or NULL if any part is missing
+     */
+    Value resolveDottedNotation(String[] paths) {
+        Map<String, Value> current = inputData;
+        for (int i = 0; i < paths.length; i++) {
+            var value = current.get(paths[i]);
+            if (value != null) {
+                if (value.getType() == ValueType.MAP) {
+                    current = value.getMap();
+                }
+                if (i == paths.length - 1) {
+                    return value;
+                }
+                if (value.getType() == ValueType.FUNCTION || value.getType() == ValueType.MEMOIZED || value.getType() == ValueType.ASYNC) {
+                    var resolved = resolve(value);
+                    if (resolved.getType() == ValueType.MAP) {
+                        current = resolved.getMap();
+                    } else {
+                        return Value.NULL;
+                    }
+                }
+            } else {
+                return Value.NULL;
+            }
+        }
+        return Value.NULL;
+    }
+}
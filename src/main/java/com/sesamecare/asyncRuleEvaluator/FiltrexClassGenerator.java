@@ -0,0 +1,211 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Turns a compiled node tree into a hidden JVM class. The tree is first lowered to a
+ * tree of method handles, which is then handed to a generated subclass of
+ * {@link FiltrexNode} as a class data constant. Because the handle is a constant of
+ * the generated class, the JIT can inline through the whole expression, including the
+ * comparisons, boolean logic and {@link Value} accessors it calls.
+ * <p>
+ * The generated class only holds a single evaluate method, so it is written by hand here
+ * rather than pulling in a bytecode library.
+ */
+class FiltrexClassGenerator {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+    private static final MethodType NODE_TYPE = MethodType.methodType(Value.class, EvaluationState.class);
+
+    private static final MethodHandle EVALUATE;
+    private static final MethodHandle APPLY;
+    private static final MethodHandle AS_BOOLEAN;
+    private static final MethodHandle NOT;
+    private static final MethodHandle TRUE;
+    private static final MethodHandle FALSE;
+
+    static {
+        try {
+            EVALUATE = LOOKUP.findVirtual(FiltrexNode.class, "evaluate", NODE_TYPE);
+            APPLY = LOOKUP.findVirtual(FiltrexNode.Binary.class, "apply",
+                    MethodType.methodType(Value.class, Value.class, Value.class));
+            AS_BOOLEAN = LOOKUP.findVirtual(Value.class, "asBoolean", MethodType.methodType(boolean.class));
+            NOT = LOOKUP.findStatic(FiltrexClassGenerator.class, "not", MethodType.methodType(Value.class, Value.class));
+            TRUE = MethodHandles.dropArguments(MethodHandles.constant(Value.class, Value.TRUE), 0, EvaluationState.class);
+            FALSE = MethodHandles.dropArguments(MethodHandles.constant(Value.class, Value.FALSE), 0, EvaluationState.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private static final String NODE_CLASS = "com/sesamecare/asyncRuleEvaluator/FiltrexNode";
+    private static final String GENERATED_CLASS = NODE_CLASS + "$Generated";
+    private static final String NODE_DESCRIPTOR =
+            "(Lcom/sesamecare/asyncRuleEvaluator/EvaluationState;)Lcom/sesamecare/asyncRuleEvaluator/Value;";
+
+    private static final byte[] CLASS_BYTES = classBytes();
+
+    /**
+     * Generate a class for the given node tree
+     * @param root the compiled expression
+     * @return a node that evaluates exactly as root does
+     * @throws ReflectiveOperationException if the class could not be defined
+     */
+    static FiltrexNode generate(FiltrexNode root) throws ReflectiveOperationException {
+        var handle = lower(root);
+        var hidden = LOOKUP.defineHiddenClassWithClassData(CLASS_BYTES, handle, true);
+        return (FiltrexNode) hidden.lookupClass().getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Convert a node to a method handle of type (EvaluationState)Value. Nodes that have no
+     * specialized form are bound directly to their evaluate method.
+     */
+    static MethodHandle lower(FiltrexNode node) {
+        if (node instanceof FiltrexNode.Literal literal) {
+            return MethodHandles.dropArguments(MethodHandles.constant(Value.class, literal.value), 0, EvaluationState.class);
+        }
+        if (node instanceof FiltrexNode.Binary binary) {
+            return both(APPLY.bindTo(binary), lower(binary.lhs), lower(binary.rhs));
+        }
+        if (node instanceof FiltrexNode.Or or) {
+            return MethodHandles.guardWithTest(test(or.lhs), TRUE, MethodHandles.filterReturnValue(test(or.rhs), booleanToValue()));
+        }
+        if (node instanceof FiltrexNode.And and) {
+            return MethodHandles.guardWithTest(test(and.lhs), MethodHandles.filterReturnValue(test(and.rhs), booleanToValue()), FALSE);
+        }
+        if (node instanceof FiltrexNode.Not not) {
+            return MethodHandles.filterReturnValue(lower(not.operand), NOT);
+        }
+        if (node instanceof FiltrexNode.Ternary ternary) {
+            return MethodHandles.guardWithTest(test(ternary.condition), lower(ternary.whenTrue), lower(ternary.whenFalse));
+        }
+        return EVALUATE.bindTo(node);
+    }
+
+    /**
+     * Evaluate lhs and then rhs against the same state and pass both to the operator
+     */
+    private static MethodHandle both(MethodHandle operator, MethodHandle lhs, MethodHandle rhs) {
+        // collectArguments runs the collector before the target, so lhs is evaluated before rhs
+        var withRhs = MethodHandles.collectArguments(operator, 1, rhs);
+        var withBoth = MethodHandles.collectArguments(withRhs, 0, lhs);
+        return MethodHandles.permuteArguments(withBoth, NODE_TYPE, 0, 0);
+    }
+
+    private static MethodHandle test(FiltrexNode node) {
+        return MethodHandles.filterReturnValue(lower(node), AS_BOOLEAN);
+    }
+
+    private static MethodHandle booleanToValue() {
+        return MethodHandles.guardWithTest(
+                MethodHandles.identity(boolean.class),
+                MethodHandles.dropArguments(MethodHandles.constant(Value.class, Value.TRUE), 0, boolean.class),
+                MethodHandles.dropArguments(MethodHandles.constant(Value.class, Value.FALSE), 0, boolean.class));
+    }
+
+    private static Value not(Value v) {
+        return v.asBoolean() ? Value.FALSE : Value.TRUE;
+    }
+
+    /**
+     * Build the class file for a FiltrexNode subclass whose evaluate method is
+     * <pre>
+     * return ((MethodHandle) MethodHandles.classData(...)).invokeExact(state);
+     * </pre>
+     * The class data is loaded through a dynamic constant so the JIT treats it as a constant.
+     */
+    private static byte[] classBytes() {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(65); // Java 21
+
+            out.writeShort(29);
+            utf8(out, GENERATED_CLASS);                    // 1
+            ref(out, 7, 1);                                // 2 this class
+            utf8(out, NODE_CLASS);                         // 3
+            ref(out, 7, 3);                                // 4 super class
+            utf8(out, "<init>");                           // 5
+            utf8(out, "()V");                              // 6
+            ref(out, 12, 5, 6);                            // 7
+            ref(out, 10, 4, 7);                            // 8 FiltrexNode.<init>
+            utf8(out, "evaluate");                         // 9
+            utf8(out, NODE_DESCRIPTOR);                    // 10
+            utf8(out, "Code");                             // 11
+            utf8(out, "java/lang/invoke/MethodHandles");   // 12
+            ref(out, 7, 12);                               // 13
+            utf8(out, "classData");                        // 14
+            utf8(out, "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;"); // 15
+            ref(out, 12, 14, 15);                          // 16
+            ref(out, 10, 13, 16);                          // 17 MethodHandles.classData
+            out.writeByte(15);                             // 18 REF_invokeStatic handle for the bootstrap
+            out.writeByte(6);
+            out.writeShort(17);
+            utf8(out, "_");                                // 19
+            utf8(out, "Ljava/lang/invoke/MethodHandle;");  // 20
+            ref(out, 12, 19, 20);                          // 21
+            ref(out, 17, 0, 21);                           // 22 dynamic constant, bootstrap 0
+            utf8(out, "java/lang/invoke/MethodHandle");    // 23
+            ref(out, 7, 23);                               // 24
+            utf8(out, "invokeExact");                      // 25
+            ref(out, 12, 25, 10);                          // 26
+            ref(out, 10, 24, 26);                          // 27 MethodHandle.invokeExact
+            utf8(out, "BootstrapMethods");                 // 28
+
+            out.writeShort(0x0030); // final, super
+            out.writeShort(2);
+            out.writeShort(4);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(2);
+            // <init>: aload_0, invokespecial FiltrexNode.<init>, return
+            method(out, 0x0001, 5, 6, 1, 1, new byte[]{0x2a, (byte) 0xb7, 0, 8, (byte) 0xb1});
+            // evaluate: ldc_w handle, aload_1, invokevirtual invokeExact, areturn
+            method(out, 0x0000, 9, 10, 2, 2, new byte[]{0x13, 0, 22, 0x2b, (byte) 0xb6, 0, 27, (byte) 0xb0});
+
+            out.writeShort(1);
+            out.writeShort(28);
+            out.writeInt(6);
+            out.writeShort(1);
+            out.writeShort(18);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void utf8(DataOutputStream out, String s) throws IOException {
+        out.writeByte(1);
+        out.writeUTF(s);
+    }
+
+    private static void ref(DataOutputStream out, int tag, int... indexes) throws IOException {
+        out.writeByte(tag);
+        for (var index : indexes) {
+            out.writeShort(index);
+        }
+    }
+
+    private static void method(DataOutputStream out, int access, int name, int descriptor, int maxStack, int maxLocals, byte[] code) throws IOException {
+        out.writeShort(access);
+        out.writeShort(name);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        out.writeShort(11);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+}
@@ -0,0 +1,378 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.tree.ErrorNode;
+import org.antlr.v4.runtime.tree.ParseTree;
+import org.antlr.v4.runtime.tree.RuleNode;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Lowers an ANTLR parse tree into a tree of {@link FiltrexNode}s. This runs once
+ * per expression, so all token text is read here and never during a run.
+ */
+class FiltrexCompiler extends FiltrexBaseVisitor<FiltrexNode> {
+    /**
+     * Fails on the first syntax error instead of printing it and compiling whatever the parser recovered
+     */
+    private static final BaseErrorListener SYNTAX_ERRORS = new BaseErrorListener() {
+        @Override
+        public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol, int line, int column,
+                                String message, RecognitionException e) {
+            throw new FiltrexRuntimeException("Syntax error at line " + line + ", column " + (column + 1) + ": " + message);
+        }
+    };
+
+    private final NumericMode mode;
+    private final FunctionRegistry functions;
+
+    private FiltrexCompiler(FiltrexOptions options) {
+        this.mode = options.getNumericMode();
+        this.functions = options.getFunctions();
+    }
+
+    /**
+     * Parse and compile an expression with the default options
+     * @param expression Filtrex rule code
+     * @return the root of the compiled tree
+     */
+    static FiltrexNode compile(String expression) {
+        return compile(expression, FiltrexOptions.DEFAULT);
+    }
+
+    /**
+     * Parse and compile an expression, binding its function calls and folding any constant parts of it
+     * @param expression Filtrex rule code
+     * @param options the arithmetic and functions the expression uses
+     * @return the root of the compiled tree
+     * @throws FiltrexRuntimeException if the expression is not valid, or a registered function is called
+     * with the wrong number of arguments
+     */
+    static FiltrexNode compile(String expression, FiltrexOptions options) {
+        var stream = CharStreams.fromString(expression);
+        var lexer = new FiltrexLexer(stream);
+        lexer.removeErrorListeners();
+        lexer.addErrorListener(SYNTAX_ERRORS);
+        var tokens = new CommonTokenStream(lexer);
+        var parser = new FiltrexParser(tokens);
+        parser.removeErrorListeners();
+        parser.addErrorListener(SYNTAX_ERRORS);
+
+        var tree = parser.expressions();
+        return ConstantFolder.fold(new FiltrexCompiler(options).visit(tree));
+    }
+
+    /**
+     * Split the text of a SYMBOL token into the keys it looks up. foo.bar is the key foo and then
+     * the key bar, while a quoted symbol such as 'first name' or 'a.b' is always a single key.
+     * @param text the token text
+     * @return the keys, in order
+     * @throws FiltrexRuntimeException if an unquoted symbol has an empty key, as in foo..bar
+     */
+    static String[] symbolPath(String text) {
+        if (text.charAt(0) == '\'') {
+            var key = new StringBuilder(text.length());
+            for (int i = 1; i < text.length() - 1; i++) {
+                var c = text.charAt(i);
+                // The lexer only accepts \' and \\ as escapes
+                if (c == '\\') {
+                    c = text.charAt(++i);
+                }
+                key.append(c);
+            }
+            return new String[]{key.toString()};
+        }
+        var path = new ArrayList<String>();
+        int start = 0;
+        while (true) {
+            int dot = text.indexOf('.', start);
+            int end = dot < 0 ? text.length() : dot;
+            if (end == start) {
+                throw new FiltrexRuntimeException("Invalid symbol " + text);
+            }
+            path.add(text.substring(start, end));
+            if (dot < 0) {
+                return path.toArray(new String[0]);
+            }
+            start = dot + 1;
+        }
+    }
+
+    @Override
+    public FiltrexNode visitExpressions(FiltrexParser.ExpressionsContext ctx) {
+        return visit(ctx.e());
+    }
+
+    @Override
+    public FiltrexNode visitMulDiv(FiltrexParser.MulDivContext ctx) {
+        var lhs = visit(ctx.e(0));
+        var rhs = visit(ctx.e(1));
+        if ("*".equals(ctx.op.getText())) {
+            return new FiltrexNode.Multiply(lhs, rhs, mode);
+        }
+        return new FiltrexNode.Divide(lhs, rhs, mode);
+    }
+
+    @Override
+    public FiltrexNode visitArrayWithCommaExpression(FiltrexParser.ArrayWithCommaExpressionContext ctx) {
+        var elements = elements(ctx.array());
+        elements.add(visit(ctx.e()));
+        return new FiltrexNode.ArrayOf(elements.toArray(new FiltrexNode[0]), true);
+    }
+
+    @Override
+    public FiltrexNode visitOr(FiltrexParser.OrContext ctx) {
+        return new FiltrexNode.Or(visit(ctx.e(0)), visit(ctx.e(1)));
+    }
+
+    @Override
+    public FiltrexNode visitIn(FiltrexParser.InContext ctx) {
+        return new FiltrexNode.In(visit(ctx.e(0)), visit(ctx.e(1)), true, false);
+    }
+
+    @Override
+    public FiltrexNode visitNotIn(FiltrexParser.NotInContext ctx) {
+        return new FiltrexNode.In(visit(ctx.e(0)), visit(ctx.e(1)), true, true);
+    }
+
+    @Override
+    public FiltrexNode visitSymbol(FiltrexParser.SymbolContext ctx) {
+        return new FiltrexNode.Symbol(symbolPath(ctx.SYMBOL().getText()));
+    }
+
+    @Override
+    public FiltrexNode visitString(FiltrexParser.StringContext ctx) {
+        var withQuotes = ctx.STRING().toString();
+        return new FiltrexNode.Literal(new Value(withQuotes.substring(1, withQuotes.length() - 1)));
+    }
+
+    @Override
+    public FiltrexNode visitArrayWithCommaBracketExpression(FiltrexParser.ArrayWithCommaBracketExpressionContext ctx) {
+        var elements = elements(ctx.array());
+        elements.add(visit(ctx.e()));
+        return new FiltrexNode.ArrayOf(elements.toArray(new FiltrexNode[0]), true);
+    }
+
+    @Override
+    public FiltrexNode visitLessThan(FiltrexParser.LessThanContext ctx) {
+        return new FiltrexNode.LessThan(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitSymbolFunctionCallWithArgs(FiltrexParser.SymbolFunctionCallWithArgsContext ctx) {
+        return call(ctx.SYMBOL().getText(), (FiltrexNode.ArrayOf) visit(ctx.argsList()));
+    }
+
+    @Override
+    public FiltrexNode visitSymbolFunctionCall(FiltrexParser.SymbolFunctionCallContext ctx) {
+        return call(ctx.SYMBOL().getText(), null);
+    }
+
+    @Override
+    public FiltrexNode visitNumber(FiltrexParser.NumberContext ctx) {
+        // Whole numbers that fit are held as longs by Value, larger ones stay exact
+        return new FiltrexNode.Literal(new Value(new BigDecimal(ctx.NUMBER().getText())));
+    }
+
+    @Override
+    public FiltrexNode visitGreaterThan(FiltrexParser.GreaterThanContext ctx) {
+        return new FiltrexNode.GreaterThan(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitAddSub(FiltrexParser.AddSubContext ctx) {
+        var lhs = visit(ctx.e(0));
+        var rhs = visit(ctx.e(1));
+        if ("+".equals(ctx.op.getText())) {
+            return new FiltrexNode.Add(lhs, rhs, mode);
+        }
+        return new FiltrexNode.Subtract(lhs, rhs, mode);
+    }
+
+    @Override
+    public FiltrexNode visitTernary(FiltrexParser.TernaryContext ctx) {
+        return new FiltrexNode.Ternary(visit(ctx.e(0)), visit(ctx.e(1)), visit(ctx.e(2)));
+    }
+
+    @Override
+    public FiltrexNode visitModulo(FiltrexParser.ModuloContext ctx) {
+        return new FiltrexNode.Modulo(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitUnaryMinus(FiltrexParser.UnaryMinusContext ctx) {
+        return new FiltrexNode.Negate(visit(ctx.e()), mode);
+    }
+
+    @Override
+    public FiltrexNode visitAlternativeNot(FiltrexParser.AlternativeNotContext ctx) {
+        // Not implemented, the expression evaluates to nothing
+        return new FiltrexNode.Literal(null);
+    }
+
+    @Override
+    public FiltrexNode visitGreaterThanEquals(FiltrexParser.GreaterThanEqualsContext ctx) {
+        return new FiltrexNode.GreaterThanEquals(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitNot(FiltrexParser.NotContext ctx) {
+        return new FiltrexNode.Not(visit(ctx.e()));
+    }
+
+    @Override
+    public FiltrexNode visitEquals(FiltrexParser.EqualsContext ctx) {
+        return new FiltrexNode.Equals(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitNotEquals(FiltrexParser.NotEqualsContext ctx) {
+        return new FiltrexNode.NotEquals(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitAnd(FiltrexParser.AndContext ctx) {
+        return new FiltrexNode.And(visit(ctx.e(0)), visit(ctx.e(1)));
+    }
+
+    @Override
+    public FiltrexNode visitParenExpression(FiltrexParser.ParenExpressionContext ctx) {
+        return visit(ctx.e());
+    }
+
+    @Override
+    public FiltrexNode visitArrayExpression(FiltrexParser.ArrayExpressionContext ctx) {
+        return new FiltrexNode.ArrayOf(new FiltrexNode[]{visit(ctx.e())}, true);
+    }
+
+    @Override
+    public FiltrexNode visitRegexMatch(FiltrexParser.RegexMatchContext ctx) {
+        return new FiltrexNode.RegexMatch(visit(ctx.e(0)), visit(ctx.e(1)));
+    }
+
+    @Override
+    public FiltrexNode visitInexactIn(FiltrexParser.InexactInContext ctx) {
+        return new FiltrexNode.In(visit(ctx.e(0)), visit(ctx.e(1)), false, false);
+    }
+
+    @Override
+    public FiltrexNode visitNotInexactIn(FiltrexParser.NotInexactInContext ctx) {
+        return new FiltrexNode.In(visit(ctx.e(0)), visit(ctx.e(1)), false, true);
+    }
+
+    @Override
+    public FiltrexNode visitPower(FiltrexParser.PowerContext ctx) {
+        return new FiltrexNode.Power(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitLessThanEquals(FiltrexParser.LessThanEqualsContext ctx) {
+        return new FiltrexNode.LessThanEquals(visit(ctx.e(0)), visit(ctx.e(1)), mode);
+    }
+
+    @Override
+    public FiltrexNode visitSingleArg(FiltrexParser.SingleArgContext ctx) {
+        return new FiltrexNode.ArrayOf(new FiltrexNode[]{visit(ctx.e())}, false);
+    }
+
+    @Override
+    public FiltrexNode visitArgs(FiltrexParser.ArgsContext ctx) {
+        // Walk down the left-recursive list without recursing, since it can be long
+        var reversed = new ArrayList<FiltrexParser.EContext>();
+        FiltrexParser.ArgsListContext list = ctx;
+        while (list instanceof FiltrexParser.ArgsContext more) {
+            reversed.add(more.e());
+            list = more.argsList();
+        }
+        reversed.add(((FiltrexParser.SingleArgContext) list).e());
+        return new FiltrexNode.ArrayOf(visitAll(reversed), false);
+    }
+
+    @Override
+    public FiltrexNode visitSingleElement(FiltrexParser.SingleElementContext ctx) {
+        return new FiltrexNode.ArrayOf(new FiltrexNode[]{visit(ctx.e())}, true);
+    }
+
+    @Override
+    public FiltrexNode visitArrayElements(FiltrexParser.ArrayElementsContext ctx) {
+        return new FiltrexNode.ArrayOf(elements(ctx).toArray(new FiltrexNode[0]), true);
+    }
+
+    private FiltrexNode call(String symbol, FiltrexNode.ArrayOf args) {
+        var path = symbolPath(symbol);
+        var function = functions.get(String.join(".", path));
+        if (function != null) {
+            function.checkArity(args == null ? 0 : args.elements.length);
+        }
+        return new FiltrexNode.FunctionCall(path, args, function, mode);
+    }
+
+    /**
+     * Compile the elements of a left-recursive array list, in order
+     */
+    private List<FiltrexNode> elements(FiltrexParser.ArrayContext ctx) {
+        // Walk down the list without recursing, since it can be long
+        var reversed = new ArrayList<FiltrexParser.EContext>();
+        var list = ctx;
+        while (list instanceof FiltrexParser.ArrayElementsContext more) {
+            reversed.add(more.e());
+            list = more.array();
+        }
+        reversed.add(((FiltrexParser.SingleElementContext) list).e());
+        return new ArrayList<>(Arrays.asList(visitAll(reversed)));
+    }
+
+    /**
+     * @param reversed expressions in reverse order
+     * @return the compiled expressions, in source order
+     */
+    private FiltrexNode[] visitAll(List<FiltrexParser.EContext> reversed) {
+        var nodes = new FiltrexNode[reversed.size()];
+        for (int i = 0; i < nodes.length; i++) {
+            nodes[i] = visit(reversed.get(nodes.length - 1 - i));
+        }
+        return nodes;
+    }
+
+    /**
+     * Operands the parser could not find are missing from the parse tree, and error recovery can
+     * leave behind subtrees that no visit method handles, so both fail rather than compiling to null
+     */
+    @Override
+    public FiltrexNode visit(ParseTree tree) {
+        if (tree == null) {
+            throw new FiltrexRuntimeException("Syntax error: missing operand");
+        }
+        return tree.accept(this);
+    }
+
+    @Override
+    public FiltrexNode visitChildren(RuleNode node) {
+        throw new FiltrexRuntimeException("Syntax error at " + position(node) + ": unexpected " + node.getText());
+    }
+
+    @Override
+    public FiltrexNode visitTerminal(TerminalNode node) {
+        throw new FiltrexRuntimeException("Syntax error at " + position(node) + ": unexpected " + node.getText());
+    }
+
+    @Override
+    public FiltrexNode visitErrorNode(ErrorNode node) {
+        throw new FiltrexRuntimeException("Syntax error at " + position(node) + ": unexpected " + node.getText());
+    }
+
+    private static String position(ParseTree node) {
+        var token = node instanceof TerminalNode terminal ? terminal.getSymbol()
+                : node instanceof ParserRuleContext context ? context.start : null;
+        return token == null ? "end of input" : "line " + token.getLine() + ", column " + (token.getCharPositionInLine() + 1);
+    }
+}
@@ -0,0 +1,63 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.Arrays;
+
+/**
+ * Input data for an executor compiled with a {@link FiltrexSchema}, held in an array with
+ * one slot per field. Create one with {@link FiltrexSchema#newContext()}; it can be cleared
+ * and refilled for the next run, but must not be changed while a run is using it.
+ */
+public final class FiltrexContext {
+    final FiltrexSchema schema;
+    final Value[] slots;
+
+    FiltrexContext(FiltrexSchema schema) {
+        this.schema = schema;
+        this.slots = new Value[schema.size()];
+    }
+
+    /**
+     * Set a field by slot, the fastest way to fill a context
+     * @param slot the slot of the field, from {@link FiltrexSchema#slot(String)}
+     * @param value the value of the field
+     * @return this context
+     * @throws IllegalArgumentException if the value does not have the type declared for the field
+     */
+    public FiltrexContext set(int slot, Value value) {
+        var type = value.getType();
+        var expected = schema.type(slot);
+        if (type != expected && type != ValueType.NULL && type != ValueType.FUNCTION
+                && type != ValueType.MEMOIZED && type != ValueType.ASYNC) {
+            throw new IllegalArgumentException("Field " + schema.name(slot) + " must be " + expected + ", not " + type);
+        }
+        slots[slot] = value;
+        return this;
+    }
+
+    /**
+     * Set a field by name
+     * @param name the dotted path of the field
+     * @param value the value of the field
+     * @return this context
+     */
+    public FiltrexContext set(String name, Value value) {
+        return set(schema.slot(name), value);
+    }
+
+    /**
+     * @param slot the slot of a field
+     * @return the value of the field, or null if it has not been set
+     */
+    public Value get(int slot) {
+        return slots[slot];
+    }
+
+    /**
+     * Unset every field so the context can be reused
+     * @return this context
+     */
+    public FiltrexContext clear() {
+        Arrays.fill(slots, null);
+        return this;
+    }
+}
@@ -1,10 +1,13 @@
 package com.sesamecare.asyncRuleEvaluator;
 
-import org.antlr.v4.runtime.CharStreams;
-import org.antlr.v4.runtime.CommonTokenStream;
-import org.antlr.v4.runtime.tree.ParseTree;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * This class is used to execute a Filtrex expression.
@@ -15,22 +18,135 @@ import java.util.Map;
  * var result = executor.run(Map.of("foo", new Value(2)));
  * </pre>
  *
- * The executor can be reused and the run method can be called from multiple threads at once
+ * The executor can be reused and the run method can be called from multiple threads at once.
+ * When the same rule text arrives over and over (from configuration, for example),
+ * use {@link #compile(String)} to share one executor per distinct expression.
  */
 public class FiltrexExecutor {
-    ParseTree tree;
+    private record CacheKey(String expression, FiltrexOptions options) {}
+
+    /**
+     * The default maximum number of executors kept by {@link #compile(String)}
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10_000;
 
     /**
-     * Create a new executor for the given expression
+     * The default maximum total length of the expressions kept by {@link #compile(String)}
+     */
+    public static final long DEFAULT_CACHE_WEIGHT = 10_000_000;
+
+    /**
+     * The default maximum number of patterns kept by the regex cache
+     */
+    public static final int DEFAULT_REGEX_CACHE_SIZE = 1_000;
+
+    /**
+     * The default maximum total length of the patterns kept by the regex cache
+     */
+    public static final long DEFAULT_REGEX_CACHE_WEIGHT = 1_000_000;
+
+    private static volatile BoundedCache<CacheKey, FiltrexExecutor> cache =
+            new BoundedCache<>(DEFAULT_CACHE_SIZE, DEFAULT_CACHE_WEIGHT, e -> e.expression.length());
+
+    private static final Executor VIRTUAL_THREADS = Executors.newVirtualThreadPerTaskExecutor();
+
+    final String expression;
+    volatile FiltrexNode root;
+    final Prefetcher prefetcher;
+    final FiltrexOptions options;
+    private int runCount;
+    private boolean generated;
+
+    /**
+     * Create a new executor for the given expression. The expression is parsed and
+     * compiled once here, so runs do not touch the parse tree at all.
      * @param expression Filtrex rule code
      */
     public FiltrexExecutor(String expression) {
-        var stream = CharStreams.fromString(expression);
-        var lexer = new FiltrexLexer(stream);
-        var tokens = new CommonTokenStream(lexer);
-        var parser = new FiltrexParser(tokens);
+        this(expression, FiltrexOptions.DEFAULT);
+    }
+
+    /**
+     * Create a new executor for the given expression with non-default options
+     * @param expression Filtrex rule code
+     * @param options controls how the expression is compiled, such as whether a JVM class is generated for it
+     */
+    public FiltrexExecutor(String expression, FiltrexOptions options) {
+        this.expression = expression;
+        this.options = options;
+        var compiled = FiltrexCompiler.compile(expression, options);
+        var bound = options.getSchema() == null ? compiled : options.getSchema().bind(compiled);
+        var ordered = options.isClauseReordering() ? ClauseOrderer.reorder(bound, options.getSchema()) : bound;
+        root = options.getAdaptiveInterval() > 0 ? ClauseOrderer.adapt(ordered, options.getSchema(), options.getAdaptiveInterval()) : ordered;
+        prefetcher = Prefetcher.forTree(root);
+        if (options.getCompileThreshold() == 0) {
+            generateClass();
+        }
+    }
+
+    /**
+     * Return a shared executor for the given expression, parsing and compiling it only if
+     * an identical expression is not already cached
+     * @param expression Filtrex rule code
+     * @return an executor, possibly shared with other callers
+     */
+    public static FiltrexExecutor compile(String expression) {
+        return compile(expression, FiltrexOptions.DEFAULT);
+    }
+
+    /**
+     * Return a shared executor for the given expression and options, parsing and compiling it
+     * only if an identical expression with equal options is not already cached. Options with
+     * {@link FiltrexOptions#withFunctions functions} are only equal when their registries hold the
+     * same function objects, so reuse a registry rather than building a new one for each call.
+     * @param expression Filtrex rule code
+     * @param options controls how the expression is compiled
+     * @return an executor, possibly shared with other callers
+     */
+    public static FiltrexExecutor compile(String expression, FiltrexOptions options) {
+        return cache.get(new CacheKey(expression, options), k -> new FiltrexExecutor(k.expression(), k.options()));
+    }
 
-        tree = parser.expressions();
+    /**
+     * Replace the cache used by {@link #compile(String)} with an empty one with the given limits
+     * @param maximumSize the maximum number of executors to keep
+     * @param maximumWeight the maximum total length of the expressions of the executors kept
+     */
+    public static void configureCache(int maximumSize, long maximumWeight) {
+        cache = new BoundedCache<>(maximumSize, maximumWeight, e -> e.expression.length());
+    }
+
+    /**
+     * @return hit, miss and eviction statistics for the cache used by {@link #compile(String)}
+     */
+    public static CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    /**
+     * Replace the cache of regular expressions with an empty one with the given limits. The cache
+     * holds the patterns of ~= matches whose pattern is not a string literal, such as user.pattern
+     * in name ~= user.pattern. Literal patterns are compiled with their expression and never cached.
+     * @param maximumSize the maximum number of patterns to keep
+     * @param maximumWeight the maximum total length of the patterns kept
+     */
+    public static void configureRegexCache(int maximumSize, long maximumWeight) {
+        FiltrexNode.RegexMatch.patterns = FiltrexNode.RegexMatch.newPatternCache(maximumSize, maximumWeight);
+    }
+
+    /**
+     * @return hit, miss and eviction statistics for the regex cache
+     * @see #configureRegexCache(int, long)
+     */
+    public static CacheStats regexCacheStats() {
+        return FiltrexNode.RegexMatch.patterns.stats();
+    }
+
+    /**
+     * @return the Filtrex rule code this executor runs
+     */
+    public String getExpression() {
+        return expression;
     }
 
     /**
@@ -39,8 +155,234 @@ public class FiltrexExecutor {
      * @return The result of the run, as a Value type, which often is checked with asBoolean
      */
     public Value run(Map<String, Value> inputData) {
-        var v = new FiltrexVisitorWithState(inputData, null);
-        var finalState = v.visit(tree);
-        return finalState;
+        return currentRoot().evaluate(new EvaluationState(inputData, false));
+    }
+
+    /**
+     * Run a parsed expression with the given input data, keeping the results of lazy values in
+     * the scope rather than in the input data, which is left unchanged
+     * @param inputData Values made available to the filtrex rules, which may be shared with other runs
+     * @param scope holds the results of lazy values, and may be shared by the runs of one request
+     * @return The result of the run
+     */
+    public Value run(Map<String, Value> inputData, FiltrexScope scope) {
+        return currentRoot().evaluate(new EvaluationState(inputData, false, 0, Objects.requireNonNull(scope)));
+    }
+
+    /**
+     * Run a parsed expression with the given input data without blocking on values created
+     * with {@link Value#async}. When the expression reaches an async value that has not
+     * completed, evaluation stops and is restarted from the beginning once the value is
+     * available, so no thread waits in the meantime. Memoized and async values are only
+     * looked up once, but plain {@link Value#func} values may be called again on restart.
+     * @param inputData Values made available to the filtrex rules
+     * @return a future holding the result of the run, or the exception it raised
+     */
+    public CompletableFuture<Value> runAsync(Map<String, Value> inputData) {
+        var result = new CompletableFuture<Value>();
+        attempt(currentRoot(), new EvaluationState(inputData, true), result);
+        return result;
+    }
+
+    /**
+     * Run a parsed expression with the given input data without blocking on async values, keeping
+     * the results of lazy values in the scope rather than in the input data
+     * @param inputData Values made available to the filtrex rules, which may be shared with other runs
+     * @param scope holds the results of lazy values, and may be shared by the runs of one request
+     * @return a future holding the result of the run, or the exception it raised
+     * @see #runAsync(Map)
+     */
+    public CompletableFuture<Value> runAsync(Map<String, Value> inputData, FiltrexScope scope) {
+        var result = new CompletableFuture<Value>();
+        attempt(currentRoot(), new EvaluationState(inputData, true, 0, Objects.requireNonNull(scope)), result);
+        return result;
+    }
+
+    /**
+     * Run an expression compiled with a {@link FiltrexSchema} (see {@link FiltrexOptions#withSchema})
+     * against a context of that schema. Every symbol is read straight from its slot in the context.
+     * @param context Values made available to the filtrex rules
+     * @return The result of the run
+     * @throws IllegalArgumentException if the context is not for the schema the expression was compiled with
+     */
+    public Value run(FiltrexContext context) {
+        checkSchema(context);
+        return currentRoot().evaluate(new EvaluationState(context, false, 0));
+    }
+
+    /**
+     * Run an expression compiled with a {@link FiltrexSchema} without blocking on async values
+     * @param context Values made available to the filtrex rules
+     * @return a future holding the result of the run, or the exception it raised
+     * @see #runAsync(Map)
+     * @see #run(FiltrexContext)
+     */
+    public CompletableFuture<Value> runAsync(FiltrexContext context) {
+        checkSchema(context);
+        var result = new CompletableFuture<Value>();
+        attempt(currentRoot(), new EvaluationState(context, true, 0), result);
+        return result;
+    }
+
+    private void checkSchema(FiltrexContext context) {
+        if (!context.schema.equals(options.getSchema())) {
+            throw new IllegalArgumentException("The context does not match the schema of the expression");
+        }
+    }
+
+    /**
+     * Run the expression against many sets of input data, waiting for async values without
+     * blocking. All of the runs proceed in rounds: each round evaluates every run that is not
+     * yet finished until it completes or needs an async value that is not ready, and only then
+     * are {@link BatchLoader}s dispatched. That way the keys needed by all of the runs in a round
+     * go out in one bulk call per loader.
+     * @param inputData one set of input values per run
+     * @return a future holding the results, in the same order as the input data, or the first exception raised by any run
+     */
+    public CompletableFuture<List<Value>> runBatchAsync(List<Map<String, Value>> inputData) {
+        return batch(inputData, null);
+    }
+
+    /**
+     * Run the expression against many sets of input data, waiting for async values without
+     * blocking, with one scope for the whole batch. A lazy value that appears in several sets of
+     * input data is resolved once, and none of the input data is changed.
+     * @param inputData one set of input values per run
+     * @param scope holds the results of lazy values
+     * @return a future holding the results, in the same order as the input data, or the first exception raised by any run
+     * @see #runBatchAsync(List)
+     */
+    public CompletableFuture<List<Value>> runBatchAsync(List<Map<String, Value>> inputData, FiltrexScope scope) {
+        return batch(inputData, Objects.requireNonNull(scope));
+    }
+
+    private CompletableFuture<List<Value>> batch(List<Map<String, Value>> inputData, FiltrexScope scope) {
+        var results = new Value[inputData.size()];
+        var done = new CompletableFuture<List<Value>>();
+        var all = new ArrayList<Integer>(inputData.size());
+        for (int i = 0; i < inputData.size(); i++) {
+            all.add(i);
+        }
+        round(currentRoot(), inputData, all, results, done, scope);
+        return done;
+    }
+
+    /**
+     * Run the expression against many sets of input data, blocking until all are done
+     * @param inputData one set of input values per run
+     * @return the results, in the same order as the input data
+     * @see #runBatchAsync(List)
+     */
+    public List<Value> runBatch(List<Map<String, Value>> inputData) {
+        return runBatchAsync(inputData).join();
+    }
+
+    /**
+     * Run the expression against many sets of input data with one scope, blocking until all are done
+     * @param inputData one set of input values per run
+     * @param scope holds the results of lazy values
+     * @return the results, in the same order as the input data
+     * @see #runBatchAsync(List, FiltrexScope)
+     */
+    public List<Value> runBatch(List<Map<String, Value>> inputData, FiltrexScope scope) {
+        return runBatchAsync(inputData, scope).join();
+    }
+
+    private static void round(FiltrexNode node, List<Map<String, Value>> inputData, List<Integer> remaining,
+                              Value[] results, CompletableFuture<List<Value>> done, FiltrexScope scope) {
+        var waiting = new ArrayList<Integer>();
+        var suspensions = new ArrayList<AsyncSuspension>();
+        for (var i : remaining) {
+            try {
+                results[i] = node.evaluate(new EvaluationState(inputData.get(i), true, 0, scope));
+            } catch (AsyncSuspension suspension) {
+                waiting.add(i);
+                suspensions.add(suspension);
+            } catch (Throwable t) {
+                done.completeExceptionally(t);
+                return;
+            }
+        }
+        if (waiting.isEmpty()) {
+            done.complete(Arrays.asList(results));
+            return;
+        }
+        var futures = suspensions.stream().map(s -> s.future).toArray(CompletableFuture<?>[]::new);
+        CompletableFuture.allOf(futures).whenComplete((v, error) -> round(node, inputData, waiting, results, done, scope));
+        for (var suspension : suspensions) {
+            suspension.value.flush();
+        }
+    }
+
+    /**
+     * Resolve every memoized or async value the expression could reference, concurrently.
+     * Running the expression afterward gives the same result as it would have without
+     * prefetching, but its latency is that of the slowest lookup rather than the sum of them.
+     * Values the expression would have skipped (because of "or", for example) are fetched too.
+     * @param inputData Values made available to the filtrex rules
+     * @param executor runs the memoized lookups
+     * @return a future that completes once the lookups are done. It never completes exceptionally,
+     * failed lookups are left for the run to report.
+     */
+    public CompletableFuture<Void> prefetch(Map<String, Value> inputData, Executor executor) {
+        return prefetcher.prefetch(inputData, executor);
+    }
+
+    /**
+     * Prefetch the lazy values of the input data on virtual threads and then run the expression
+     * @param inputData Values made available to the filtrex rules
+     * @return The result of the run
+     * @see #prefetch(Map, Executor)
+     */
+    public Value runPrefetched(Map<String, Value> inputData) {
+        return runPrefetched(inputData, VIRTUAL_THREADS);
+    }
+
+    /**
+     * Prefetch the lazy values of the input data using the given executor and then run the expression
+     * @param inputData Values made available to the filtrex rules
+     * @param executor runs the memoized lookups
+     * @return The result of the run
+     * @see #prefetch(Map, Executor)
+     */
+    public Value runPrefetched(Map<String, Value> inputData, Executor executor) {
+        prefetch(inputData, executor).join();
+        return run(inputData);
+    }
+
+    private static void attempt(FiltrexNode node, EvaluationState state, CompletableFuture<Value> result) {
+        try {
+            result.complete(node.evaluate(state));
+        } catch (AsyncSuspension suspension) {
+            suspension.future.whenComplete((value, error) -> attempt(node, state, result));
+            suspension.value.flush();
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    private FiltrexNode currentRoot() {
+        if (!generated && options.getCompileThreshold() > 0 && ++runCount >= options.getCompileThreshold()) {
+            // runCount is deliberately unsynchronized, the threshold is only approximate under contention
+            generateClass();
+        }
+        return root;
+    }
+
+    /**
+     * Replace the interpreted node tree with a generated JVM class. If the tree cannot be lowered
+     * or the class cannot be defined, the expression simply stays interpreted, so the run that
+     * reached the threshold still gets its result.
+     */
+    private synchronized void generateClass() {
+        if (generated) {
+            return;
+        }
+        generated = true;
+        try {
+            root = FiltrexClassGenerator.generate(root);
+        } catch (ReflectiveOperationException | RuntimeException | LinkageError | StackOverflowError e) {
+            // Keep interpreting
+        }
     }
 }
@@ -0,0 +1,916 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A node in a compiled Filtrex expression. Trees of these are built once by
+ * {@link FiltrexCompiler} with literals, operators and symbol paths already
+ * resolved, and are never modified afterward, so a single tree can be evaluated
+ * from multiple threads at once.
+ */
+abstract class FiltrexNode {
+    /**
+     * Evaluate this node (and its children) for a single run
+     * @param state the per-run state, mainly the input data
+     * @return the result of the node
+     */
+    abstract Value evaluate(EvaluationState state);
+
+    private static final FiltrexNode[] NO_CHILDREN = new FiltrexNode[0];
+
+    /**
+     * @return the direct children of this node, in evaluation order
+     */
+    FiltrexNode[] children() {
+        return NO_CHILDREN;
+    }
+
+    /**
+     * Create a copy of this node with different children, used by passes that rewrite the tree
+     * @param children replacements for the nodes returned by {@link #children()}, in the same order
+     * @return the new node, or this node if it has no children
+     */
+    FiltrexNode withChildren(FiltrexNode[] children) {
+        return this;
+    }
+
+    /**
+     * Describe this node apart from its children. Two nodes with the same description and
+     * structurally identical children always evaluate the same way.
+     * @return the description
+     */
+    String describe() {
+        return getClass().getSimpleName();
+    }
+
+    /**
+     * A node with two operands that are always both evaluated, left to right
+     */
+    abstract static class Binary extends FiltrexNode {
+        final FiltrexNode lhs;
+        final FiltrexNode rhs;
+
+        Binary(FiltrexNode lhs, FiltrexNode rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            var l = lhs.evaluate(state);
+            var r = rhs.evaluate(state);
+            return apply(l, r);
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{lhs, rhs};
+        }
+
+        abstract Value apply(Value lhs, Value rhs);
+    }
+
+    static final class Literal extends FiltrexNode {
+        final Value value;
+
+        Literal(Value value) {
+            this.value = value;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            return value;
+        }
+
+        @Override
+        String describe() {
+            if (value == null) {
+                return "Literal";
+            }
+            return "Literal " + describe(value);
+        }
+
+        private static String describe(Value value) {
+            if (value.getType() == ValueType.ARRAY) {
+                // Folded arrays need their elements kept apart, ["a,b"] is not ["a", "b"]
+                var text = new StringBuilder("ARRAY [");
+                for (var element : value.getArray()) {
+                    text.append(describe(element)).append(';');
+                }
+                return text.append(']').toString();
+            }
+            // Decimals keep their scale, since 1.0 and 1 have different lengths
+            var text = value.getType() == ValueType.DECIMAL ? value.asDecimal().toString() : value.toString();
+            return value.getType() + " " + (text == null ? "" : text.length() + ":" + text);
+        }
+    }
+
+    static final class Symbol extends FiltrexNode {
+        final String[] path;
+        final int slot;
+
+        /**
+         * @param path the keys to look up, as split by {@link FiltrexCompiler#symbolPath(String)}
+         */
+        Symbol(String[] path) {
+            this(path, -1);
+        }
+
+        /**
+         * @param path the keys to look up, as split by {@link FiltrexCompiler#symbolPath(String)}
+         * @param slot the {@link FiltrexSchema} slot of the symbol, or -1 if it is not bound to one
+         */
+        Symbol(String[] path, int slot) {
+            this.path = path;
+            this.slot = slot;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            return state.resolve(state.lookup(path, slot));
+        }
+
+        @Override
+        String describe() {
+            return "Symbol " + describe(path);
+        }
+
+        /**
+         * Describe a path so that foo.bar and the quoted single key 'foo.bar' stay distinct
+         */
+        static String describe(String[] path) {
+            var text = new StringBuilder();
+            for (var key : path) {
+                text.append(key.length()).append(':').append(key);
+            }
+            return text.toString();
+        }
+    }
+
+    static final class FunctionCall extends FiltrexNode {
+        final String name;
+        final String[] path;
+        final FiltrexNode args;
+        final FunctionRegistry.Definition function;
+        final int slot;
+        final NumericMode mode;
+
+        /**
+         * @param path the keys leading to the function, as split by {@link FiltrexCompiler#symbolPath(String)}
+         * @param args a node producing the argument array, or null for no arguments
+         * @param function the registered function being called, or null to look the function up in the input data
+         * @param mode the arithmetic used by built-in functions such as sqrt
+         */
+        FunctionCall(String[] path, FiltrexNode args, FunctionRegistry.Definition function, NumericMode mode) {
+            this(path, args, function, -1, mode);
+        }
+
+        /**
+         * @param path the keys leading to the function, as split by {@link FiltrexCompiler#symbolPath(String)}
+         * @param args a node producing the argument array, or null for no arguments
+         * @param function the registered function being called, or null to look the function up in the input data
+         * @param slot the {@link FiltrexSchema} slot of the function, or -1 if it is not bound to one
+         * @param mode the arithmetic used by built-in functions such as sqrt
+         */
+        FunctionCall(String[] path, FiltrexNode args, FunctionRegistry.Definition function, int slot, NumericMode mode) {
+            this.name = String.join(".", path);
+            this.path = path;
+            this.args = args;
+            this.function = function;
+            this.slot = slot;
+            this.mode = mode;
+        }
+
+        /**
+         * @return true if the call always returns the same result for the same arguments
+         */
+        boolean isPure() {
+            return function != null && function.pure();
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            var argValues = args == null ? Value.EMPTY.getArray() : args.evaluate(state).getArray();
+            var result = function != null
+                    ? function.body().apply(argValues, mode)
+                    : state.call(state.lookup(path, slot), argValues);
+            return state.await(result);
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return args == null ? super.children() : new FiltrexNode[]{args};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new FunctionCall(path, children.length == 0 ? null : children[0], function, slot, mode);
+        }
+
+        @Override
+        String describe() {
+            return "FunctionCall " + mode + " " + Symbol.describe(path);
+        }
+    }
+
+    /**
+     * Build an array from a comma separated list, such as (a, b), [a, b, c] or the arguments of a
+     * function call. The list is allocated once, at its final size.
+     */
+    static final class ArrayOf extends FiltrexNode {
+        final FiltrexNode[] elements;
+        final boolean spreadFirst;
+
+        /**
+         * @param elements the nodes producing each element, in order. There is at least one.
+         * @param spreadFirst true for array syntax, where a first element that is itself an array
+         *                    contributes all of its elements (so [x] is just x when x is an array),
+         *                    false for argument lists
+         */
+        ArrayOf(FiltrexNode[] elements, boolean spreadFirst) {
+            this.elements = elements;
+            this.spreadFirst = spreadFirst;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            var first = elements[0].evaluate(state);
+            ArrayList<Value> list;
+            if (spreadFirst) {
+                var head = first.asArray();
+                if (elements.length == 1) {
+                    return new Value(head);
+                }
+                list = new ArrayList<>(head.size() + elements.length - 1);
+                list.addAll(head);
+            } else {
+                list = new ArrayList<>(elements.length);
+                list.add(first);
+            }
+            for (int i = 1; i < elements.length; i++) {
+                list.add(elements[i].evaluate(state));
+            }
+            return new Value(list);
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return elements.clone();
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new ArrayOf(children.clone(), spreadFirst);
+        }
+
+        @Override
+        String describe() {
+            return spreadFirst ? "ArrayOf spread" : "ArrayOf";
+        }
+    }
+
+    /**
+     * A node that does arithmetic or compares numbers the way the executor's {@link NumericMode} says to
+     */
+    abstract static class Numeric extends Binary {
+        final NumericMode mode;
+
+        Numeric(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs);
+            this.mode = mode;
+        }
+
+        @Override
+        String describe() {
+            return getClass().getSimpleName() + " " + mode;
+        }
+    }
+
+    static final class Add extends Numeric {
+        Add(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.add(lhs, rhs);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Add(children[0], children[1], mode);
+        }
+    }
+
+    static final class Subtract extends Numeric {
+        Subtract(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.subtract(lhs, rhs);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Subtract(children[0], children[1], mode);
+        }
+    }
+
+    static final class Multiply extends Numeric {
+        Multiply(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.multiply(lhs, rhs);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Multiply(children[0], children[1], mode);
+        }
+    }
+
+    static final class Divide extends Numeric {
+        Divide(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.divide(lhs, rhs);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Divide(children[0], children[1], mode);
+        }
+    }
+
+    static final class Modulo extends Numeric {
+        Modulo(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.remainder(lhs, rhs);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Modulo(children[0], children[1], mode);
+        }
+    }
+
+    static final class Power extends Numeric {
+        Power(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.power(lhs, rhs);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Power(children[0], children[1], mode);
+        }
+    }
+
+    static final class Negate extends FiltrexNode {
+        final FiltrexNode operand;
+        final NumericMode mode;
+
+        Negate(FiltrexNode operand, NumericMode mode) {
+            this.operand = operand;
+            this.mode = mode;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            return mode.negate(operand.evaluate(state));
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{operand};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Negate(children[0], mode);
+        }
+
+        @Override
+        String describe() {
+            return "Negate " + mode;
+        }
+    }
+
+    static final class LessThan extends Numeric {
+        LessThan(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.compare(lhs, rhs) == -1 ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new LessThan(children[0], children[1], mode);
+        }
+    }
+
+    static final class LessThanEquals extends Numeric {
+        LessThanEquals(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.compare(lhs, rhs) != 1 ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new LessThanEquals(children[0], children[1], mode);
+        }
+    }
+
+    static final class GreaterThan extends Numeric {
+        GreaterThan(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.compare(lhs, rhs) == 1 ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new GreaterThan(children[0], children[1], mode);
+        }
+    }
+
+    static final class GreaterThanEquals extends Numeric {
+        GreaterThanEquals(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.compare(lhs, rhs) != -1 ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new GreaterThanEquals(children[0], children[1], mode);
+        }
+    }
+
+    static final class Equals extends Numeric {
+        Equals(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.compare(lhs, rhs) == 0 ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Equals(children[0], children[1], mode);
+        }
+    }
+
+    static final class NotEquals extends Numeric {
+        NotEquals(FiltrexNode lhs, FiltrexNode rhs, NumericMode mode) {
+            super(lhs, rhs, mode);
+        }
+
+        @Override
+        Value apply(Value lhs, Value rhs) {
+            return mode.compare(lhs, rhs) != 0 ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new NotEquals(children[0], children[1], mode);
+        }
+    }
+
+    /**
+     * Patterns written as string literals are compiled along with the expression. Any other
+     * pattern comes from a cache shared by all expressions, see {@link FiltrexExecutor#configureRegexCache}.
+     * Simple patterns are matched without a regex engine, see {@link StringMatcher}.
+     */
+    static final class RegexMatch extends Binary {
+        static volatile BoundedCache<String, StringMatcher> patterns = newPatternCache(
+                FiltrexExecutor.DEFAULT_REGEX_CACHE_SIZE, FiltrexExecutor.DEFAULT_REGEX_CACHE_WEIGHT);
+
+        private final StringMatcher literal;
+
+        RegexMatch(FiltrexNode target, FiltrexNode pattern) {
+            super(target, pattern);
+            this.literal = compileLiteral(pattern);
+        }
+
+        static BoundedCache<String, StringMatcher> newPatternCache(int maximumSize, long maximumWeight) {
+            return new BoundedCache<>(maximumSize, maximumWeight, m -> m.regex.length());
+        }
+
+        private static StringMatcher compileLiteral(FiltrexNode pattern) {
+            if (!(pattern instanceof Literal literal) || literal.value == null || literal.value.toString() == null) {
+                return null;
+            }
+            try {
+                return StringMatcher.compile(literal.value.toString());
+            } catch (PatternSyntaxException e) {
+                // Leave the error for the run to report, as it always has
+                return null;
+            }
+        }
+
+        @Override
+        Value apply(Value target, Value exp) {
+            var matcher = literal != null ? literal : patterns.get(exp.toString(), StringMatcher::compile);
+            return matcher.find(target.toString()) ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new RegexMatch(children[0], children[1]);
+        }
+    }
+
+    /**
+     * Covers in, in~, not in and not in~
+     */
+    static final class In extends Binary {
+        final boolean exactMatch;
+        final boolean negate;
+        /**
+         * The {@link Value#hashKey} of every element when the array is a constant, otherwise null
+         */
+        private final Set<String> members;
+
+        In(FiltrexNode target, FiltrexNode array, boolean exactMatch, boolean negate) {
+            super(target, array);
+            this.exactMatch = exactMatch;
+            this.negate = negate;
+            this.members = members(array, exactMatch);
+        }
+
+        private static Set<String> members(FiltrexNode array, boolean exactMatch) {
+            if (!(array instanceof Literal literal) || literal.value == null) {
+                return null;
+            }
+            var members = new HashSet<String>();
+            for (var element : literal.value.asArray()) {
+                var key = Value.hashKey(element, exactMatch);
+                if (key == null) {
+                    return null;
+                }
+                members.add(key);
+            }
+            return members;
+        }
+
+        @Override
+        Value apply(Value target, Value array) {
+            var found = members != null ? contains(target, array) : target.in(array, exactMatch).asBoolean();
+            return found != negate ? Value.TRUE : Value.FALSE;
+        }
+
+        /**
+         * The same as {@link Value#in}, but with a hash lookup for each value that has a key
+         */
+        private boolean contains(Value target, Value array) {
+            var type = target.getType();
+            if (type == ValueType.FUNCTION || type == ValueType.MEMOIZED || type == ValueType.ASYNC) {
+                // Exact matches compare the unresolved type, so leave those to Value.in
+                if (exactMatch) {
+                    return target.in(array, true).asBoolean();
+                }
+                target = target.resolve();
+            }
+            if (target.getType() == ValueType.ARRAY) {
+                for (var element : target.getArray()) {
+                    if (!contains(element, array)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            var key = Value.hashKey(target, exactMatch);
+            return key == null ? target.in(array, exactMatch).asBoolean() : members.contains(key);
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new In(children[0], children[1], exactMatch, negate);
+        }
+
+        @Override
+        String describe() {
+            return "In " + exactMatch + " " + negate;
+        }
+    }
+
+    /**
+     * Like "or", only evaluates its right side when it has to, so a false left side skips
+     * any lookups on the right
+     */
+    static final class And extends FiltrexNode {
+        final FiltrexNode lhs;
+        final FiltrexNode rhs;
+
+        And(FiltrexNode lhs, FiltrexNode rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            if (!lhs.evaluate(state).asBoolean()) {
+                return Value.FALSE;
+            }
+            return rhs.evaluate(state).asBoolean() ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{lhs, rhs};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new And(children[0], children[1]);
+        }
+    }
+
+    static final class Or extends FiltrexNode {
+        final FiltrexNode lhs;
+        final FiltrexNode rhs;
+
+        Or(FiltrexNode lhs, FiltrexNode rhs) {
+            this.lhs = lhs;
+            this.rhs = rhs;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            if (lhs.evaluate(state).asBoolean()) {
+                return Value.TRUE;
+            }
+            return rhs.evaluate(state).asBoolean() ? Value.TRUE : Value.FALSE;
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{lhs, rhs};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Or(children[0], children[1]);
+        }
+    }
+
+    static final class Not extends FiltrexNode {
+        final FiltrexNode operand;
+
+        Not(FiltrexNode operand) {
+            this.operand = operand;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            return operand.evaluate(state).asBoolean() ? Value.FALSE : Value.TRUE;
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{operand};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Not(children[0]);
+        }
+    }
+
+    static final class Ternary extends FiltrexNode {
+        final FiltrexNode condition;
+        final FiltrexNode whenTrue;
+        final FiltrexNode whenFalse;
+
+        Ternary(FiltrexNode condition, FiltrexNode whenTrue, FiltrexNode whenFalse) {
+            this.condition = condition;
+            this.whenTrue = whenTrue;
+            this.whenFalse = whenFalse;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            return condition.evaluate(state).asBoolean() ? whenTrue.evaluate(state) : whenFalse.evaluate(state);
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{condition, whenTrue, whenFalse};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Ternary(children[0], children[1], children[2]);
+        }
+    }
+
+    /**
+     * A chain of "and" or "or" terms, none of which may have side effects (see {@link ClauseOrderer}), whose order
+     * adapts to the data it is run with. One evaluation in {@link #SAMPLE_RATE} is profiled,
+     * recording how long each term took and how often it decided the result. After every
+     * <i>interval</i> profiled evaluations the terms are put in the order that is expected to
+     * decide the result cheapest, by their cost divided by how often they decide it, and the new
+     * plan replaces the old one with a compare-and-set, so evaluations never wait on each other.
+     * Each new plan starts from half of the counts of the old one, so older runs count less and less.
+     */
+    static final class Adaptive extends FiltrexNode {
+        static final int SAMPLE_RATE = 16;
+
+        final boolean and;
+        final FiltrexNode[] terms;
+        final int interval;
+        private final AtomicReference<Plan> plan;
+
+        /**
+         * An order of the terms and the profile collected while it was in use
+         */
+        private static final class Plan {
+            final int[] order;
+
+            /**
+             * For each term, the evaluations, the ones that decided the result and their total
+             * nanoseconds, followed by the number of profiled evaluations of the chain
+             */
+            final AtomicLongArray profile;
+
+            Plan(int[] order, AtomicLongArray profile) {
+                this.order = order;
+                this.profile = profile;
+            }
+        }
+
+        /**
+         * @param and true for an "and" chain, false for an "or" chain
+         * @param terms the terms, in the order they are first tried
+         * @param interval the number of profiled evaluations between plans
+         */
+        Adaptive(boolean and, FiltrexNode[] terms, int interval) {
+            this.and = and;
+            this.terms = terms;
+            this.interval = interval;
+            var order = new int[terms.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            this.plan = new AtomicReference<>(new Plan(order, new AtomicLongArray(terms.length * 3 + 1)));
+        }
+
+        /**
+         * @return the term indexes in the order they are currently tried
+         */
+        int[] order() {
+            return plan.get().order.clone();
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            var current = plan.get();
+            if (ThreadLocalRandom.current().nextInt(SAMPLE_RATE) == 0) {
+                return profile(state, current);
+            }
+            for (var i : current.order) {
+                if (terms[i].evaluate(state).asBoolean() != and) {
+                    return and ? Value.FALSE : Value.TRUE;
+                }
+            }
+            return and ? Value.TRUE : Value.FALSE;
+        }
+
+        private Value profile(EvaluationState state, Plan current) {
+            var profile = current.profile;
+            var result = and ? Value.TRUE : Value.FALSE;
+            for (var i : current.order) {
+                var start = System.nanoTime();
+                var decided = terms[i].evaluate(state).asBoolean() != and;
+                profile.incrementAndGet(i * 3);
+                profile.addAndGet(i * 3 + 2, System.nanoTime() - start);
+                if (decided) {
+                    profile.incrementAndGet(i * 3 + 1);
+                    result = and ? Value.FALSE : Value.TRUE;
+                    break;
+                }
+            }
+            if (profile.incrementAndGet(terms.length * 3) == interval) {
+                // Exactly one evaluation reaches the interval, and a plan only replaces the one it was built from
+                plan.compareAndSet(current, replan(current));
+            }
+            return result;
+        }
+
+        private Plan replan(Plan current) {
+            var profile = current.profile;
+            var next = new AtomicLongArray(profile.length());
+            var scores = new double[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                long evaluations = profile.get(i * 3);
+                long decided = profile.get(i * 3 + 1);
+                long nanos = profile.get(i * 3 + 2);
+                // Terms that were never reached, or never decided anything, go last in their current order
+                scores[i] = decided == 0 ? Double.POSITIVE_INFINITY : (double) nanos / decided;
+                next.set(i * 3, evaluations / 2);
+                next.set(i * 3 + 1, decided / 2);
+                next.set(i * 3 + 2, nanos / 2);
+            }
+            var order = Arrays.stream(current.order).boxed()
+                    .sorted(Comparator.comparingDouble(i -> scores[i]))
+                    .mapToInt(Integer::intValue)
+                    .toArray();
+            return new Plan(order, next);
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return terms.clone();
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Adaptive(and, children, interval);
+        }
+
+        @Override
+        String describe() {
+            return "Adaptive " + (and ? "and" : "or");
+        }
+    }
+
+    /**
+     * A sub-expression that appears more than once in a {@link FiltrexRuleSet}. It is
+     * evaluated the first time it is needed in a run and the result is reused after that.
+     */
+    static final class Shared extends FiltrexNode {
+        final int slot;
+        final FiltrexNode node;
+
+        Shared(int slot, FiltrexNode node) {
+            this.slot = slot;
+            this.node = node;
+        }
+
+        @Override
+        Value evaluate(EvaluationState state) {
+            var cached = state.shared[slot];
+            if (cached == null) {
+                cached = node.evaluate(state);
+                state.shared[slot] = cached;
+            }
+            return cached;
+        }
+
+        @Override
+        FiltrexNode[] children() {
+            return new FiltrexNode[]{node};
+        }
+
+        @Override
+        FiltrexNode withChildren(FiltrexNode[] children) {
+            return new Shared(slot, children[0]);
+        }
+
+        @Override
+        String describe() {
+            return "Shared " + slot;
+        }
+    }
+}
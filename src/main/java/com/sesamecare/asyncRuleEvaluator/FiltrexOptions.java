@@ -0,0 +1,189 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.Objects;
+
+/**
+ * Options controlling how a {@link FiltrexExecutor} compiles and runs its expression.
+ * Instances are immutable; each "with" method returns a modified copy.
+ * <p>
+ * Example usage:
+ * <pre>
+ * var options = FiltrexOptions.DEFAULT.withCompileThreshold(1000);
+ * var executor = new FiltrexExecutor("foo &gt; 5", options);
+ * </pre>
+ */
+public final class FiltrexOptions {
+    /**
+     * Used as a compile threshold to never generate bytecode for an expression
+     */
+    public static final int NEVER = -1;
+
+    /**
+     * Interpret the compiled node tree and never generate bytecode
+     */
+    public static final FiltrexOptions DEFAULT = new FiltrexOptions(NEVER, null, NumericMode.EXACT, FunctionRegistry.BUILT_IN, false, 0);
+
+    private final int compileThreshold;
+    private final FiltrexSchema schema;
+    private final NumericMode numericMode;
+    private final FunctionRegistry functions;
+    private final boolean clauseReordering;
+    private final int adaptiveInterval;
+
+    private FiltrexOptions(int compileThreshold, FiltrexSchema schema, NumericMode numericMode, FunctionRegistry functions,
+                           boolean clauseReordering, int adaptiveInterval) {
+        this.compileThreshold = compileThreshold;
+        this.schema = schema;
+        this.numericMode = numericMode;
+        this.functions = functions;
+        this.clauseReordering = clauseReordering;
+        this.adaptiveInterval = adaptiveInterval;
+    }
+
+    /**
+     * Return a copy of these options that generates a JVM class for the expression
+     * once it has been run the given number of times. Until then, the expression is
+     * interpreted.
+     * @param runs the number of runs before generating a class, 0 to generate it immediately,
+     *             or {@link #NEVER} to always interpret
+     * @return the new options
+     */
+    public FiltrexOptions withCompileThreshold(int runs) {
+        if (runs < NEVER) {
+            throw new IllegalArgumentException("Invalid compile threshold " + runs);
+        }
+        return new FiltrexOptions(runs, schema, numericMode, functions, clauseReordering, adaptiveInterval);
+    }
+
+    /**
+     * @return the number of runs before a class is generated for the expression, or {@link #NEVER}
+     */
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * Return a copy of these options that binds the expression to a schema, so it is run
+     * with a {@link FiltrexContext} and may only reference the fields of the schema
+     * @param schema the schema, or null to run with maps
+     * @return the new options
+     */
+    public FiltrexOptions withSchema(FiltrexSchema schema) {
+        return new FiltrexOptions(compileThreshold, schema, numericMode, functions, clauseReordering, adaptiveInterval);
+    }
+
+    /**
+     * @return the schema the expression is bound to, or null if it is run with maps
+     */
+    public FiltrexSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Return a copy of these options that does arithmetic and compares numbers with the given mode
+     * @param numericMode {@link NumericMode#EXACT} (the default), {@link NumericMode#DOUBLE},
+     *                    or a rounded mode from {@link NumericMode#exact(java.math.MathContext)}
+     * @return the new options
+     */
+    public FiltrexOptions withNumericMode(NumericMode numericMode) {
+        return new FiltrexOptions(compileThreshold, schema, Objects.requireNonNull(numericMode), functions, clauseReordering, adaptiveInterval);
+    }
+
+    /**
+     * @return the arithmetic used by the expression
+     */
+    public NumericMode getNumericMode() {
+        return numericMode;
+    }
+
+    /**
+     * Return a copy of these options that binds function calls in the expression to the given functions.
+     * Registries are equal when they register the same function objects under the same names, so reuse
+     * function instances (or the registry itself) for executors from {@link FiltrexExecutor#compile(String, FiltrexOptions)}
+     * to share cache entries; a lambda created anew for each call never matches an earlier one.
+     * @param functions the functions the expression can call, usually {@link FunctionRegistry#BUILT_IN}
+     *                  with application functions added
+     * @return the new options
+     */
+    public FiltrexOptions withFunctions(FunctionRegistry functions) {
+        return new FiltrexOptions(compileThreshold, schema, numericMode, Objects.requireNonNull(functions), clauseReordering, adaptiveInterval);
+    }
+
+    /**
+     * @return the functions the expression can call
+     */
+    public FunctionRegistry getFunctions() {
+        return functions;
+    }
+
+    /**
+     * Return a copy of these options that reorders the terms of "and" and "or" chains so that
+     * cheap terms, such as plain comparisons, run before terms that look up lazy values or call
+     * functions from the input data. Since both operators short-circuit, the expensive terms are
+     * then skipped whenever a cheap one decides the result. Only enable this when the terms do not
+     * depend on each other: a guard such as x != 0 in "x != 0 and y / x &gt; 2" could be moved
+     * after the division it protects if the division were estimated to be cheaper.
+     * <p>
+     * Terms are only moved when they are known to have no side effects, which needs a
+     * {@link #withSchema schema}: without one, any symbol could be a {@link Value#func} that is
+     * called each time it is read, so terms that read the input data keep their written order.
+     * Fields the schema declares as {@link ValueType#FUNCTION} or {@link ValueType#ASYNC} are not
+     * moved either, while memoized fields are moved after the cheaper terms.
+     * @param clauseReordering true to reorder
+     * @return the new options
+     */
+    public FiltrexOptions withClauseReordering(boolean clauseReordering) {
+        return new FiltrexOptions(compileThreshold, schema, numericMode, functions, clauseReordering, adaptiveInterval);
+    }
+
+    /**
+     * @return true if the terms of "and" and "or" chains are reordered by cost
+     */
+    public boolean isClauseReordering() {
+        return clauseReordering;
+    }
+
+    /**
+     * Return a copy of these options that profiles the terms of "and" and "or" chains as the
+     * expression runs and keeps reordering them so that the term most likely to decide the result
+     * cheaply runs first. One run in 16 is profiled, so the overhead is small, and older profiles
+     * count less and less, so the order follows data whose selectivity changes over time. Terms
+     * that may have side effects are never moved, as described for {@link #withClauseReordering(boolean)}:
+     * calls to functions that are not pure, fields the schema declares as functions or async values,
+     * and, without a schema, every term that reads the input data. The same caution about guards applies
+     * as for {@link #withClauseReordering(boolean)}, which decides the order the profiling starts from.
+     * @param interval the number of profiled runs of a chain between reorderings, or 0 to disable
+     * @return the new options
+     */
+    public FiltrexOptions withAdaptiveReordering(int interval) {
+        if (interval < 0) {
+            throw new IllegalArgumentException("Invalid adaptive reordering interval " + interval);
+        }
+        return new FiltrexOptions(compileThreshold, schema, numericMode, functions, clauseReordering, interval);
+    }
+
+    /**
+     * @return the number of profiled runs of a chain between reorderings, or 0 if chains are not profiled
+     */
+    public int getAdaptiveInterval() {
+        return adaptiveInterval;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FiltrexOptions that)) {
+            return false;
+        }
+        return compileThreshold == that.compileThreshold && Objects.equals(schema, that.schema)
+                && numericMode.equals(that.numericMode) && functions.equals(that.functions)
+                && clauseReordering == that.clauseReordering && adaptiveInterval == that.adaptiveInterval;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(compileThreshold, schema, numericMode, functions, clauseReordering, adaptiveInterval);
+    }
+}
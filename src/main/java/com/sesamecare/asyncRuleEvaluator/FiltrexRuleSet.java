@@ -0,0 +1,259 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A collection of named Filtrex expressions that are run together against the same input data.
+ * <p>
+ * The rules are compiled into a single graph in which structurally identical sub-expressions
+ * (user.age &gt;= 18 appearing in dozens of rules, for example) are only evaluated once per run,
+ * no matter how many rules use them.
+ * <p>
+ * Example usage:
+ * <pre>
+ * var rules = new FiltrexRuleSet(Map.of(
+ *     "adult", "user.age &gt;= 18",
+ *     "adultInState", "user.age &gt;= 18 and state in (\"CA\", \"NY\")"
+ * ));
+ * var results = rules.run(Map.of("user", userValue, "state", new Value("CA")));
+ * </pre>
+ * Sub-expressions that call random() or functions not registered as pure in a {@link FunctionRegistry}
+ * are never shared, since they may return a different result each time. Plain {@link Value#func} values that are referenced
+ * by a shared sub-expression are called once per run rather than once per rule.
+ * <p>
+ * Rules that must test a symbol against constants (state in ("CA", "NY") above, or plan == "gold")
+ * are indexed by that symbol. Each run looks the symbol up once and skips every rule whose constants
+ * cannot match it; skipped rules are false, which is what they would have evaluated to.
+ * <p>
+ * Like {@link FiltrexExecutor}, a rule set is immutable and can be run from multiple threads at once.
+ */
+public class FiltrexRuleSet {
+    private final String[] names;
+    private final FiltrexNode[] roots;
+    private final int sharedSlots;
+    private final PredicateIndex[] indexes;
+    private final boolean[] unindexed;
+
+    /**
+     * Compile a set of rules
+     * @param rules Filtrex rule code by rule name. Results are returned in the iteration order of this map.
+     */
+    public FiltrexRuleSet(Map<String, String> rules) {
+        this(rules, FunctionRegistry.BUILT_IN);
+    }
+
+    /**
+     * Compile a set of rules that call application functions
+     * @param rules Filtrex rule code by rule name. Results are returned in the iteration order of this map.
+     * @param functions the functions the rules can call
+     */
+    public FiltrexRuleSet(Map<String, String> rules, FunctionRegistry functions) {
+        names = rules.keySet().toArray(new String[0]);
+        var options = FiltrexOptions.DEFAULT.withFunctions(functions);
+        var compiled = new FiltrexNode[names.length];
+        for (int i = 0; i < names.length; i++) {
+            compiled[i] = FiltrexCompiler.compile(rules.get(names[i]), options);
+        }
+        var eliminator = new SubexpressionEliminator();
+        roots = eliminator.share(compiled);
+        sharedSlots = eliminator.slots;
+
+        var byPath = new LinkedHashMap<String, PredicateIndex>();
+        unindexed = new boolean[names.length];
+        for (int i = 0; i < names.length; i++) {
+            var predicate = PredicateIndex.find(compiled[i]);
+            if (predicate == null) {
+                unindexed[i] = true;
+            } else {
+                byPath.computeIfAbsent(predicate.indexKey(), k -> new PredicateIndex(predicate.symbol(), predicate.typed()))
+                        .add(i, predicate);
+            }
+        }
+        indexes = byPath.values().toArray(new PredicateIndex[0]);
+    }
+
+    /**
+     * @return the number of distinct sub-expressions that are shared between (or within) rules
+     */
+    public int getSharedCount() {
+        return sharedSlots;
+    }
+
+    /**
+     * @return the number of rules that are only evaluated when an indexed symbol has a matching value
+     */
+    public int getIndexedCount() {
+        int count = 0;
+        for (var index : indexes) {
+            count += index.rules.size();
+        }
+        return count;
+    }
+
+    private boolean[] candidates(EvaluationState state) {
+        var candidates = Arrays.copyOf(unindexed, unindexed.length);
+        for (var index : indexes) {
+            index.markCandidates(state, candidates);
+        }
+        return candidates;
+    }
+
+    /**
+     * Run every rule with the given input data
+     * @param inputData Values made available to the filtrex rules
+     * @return the result of each rule by name
+     */
+    public Map<String, Value> run(Map<String, Value> inputData) {
+        return run(new EvaluationState(inputData, false, sharedSlots));
+    }
+
+    /**
+     * Run every rule with the given input data, keeping the results of lazy values in the scope
+     * rather than in the input data, which is left unchanged
+     * @param inputData Values made available to the filtrex rules, which may be shared with other runs
+     * @param scope holds the results of lazy values, and may be shared by the runs of one request
+     * @return the result of each rule by name
+     * @see FiltrexExecutor#run(Map, FiltrexScope)
+     */
+    public Map<String, Value> run(Map<String, Value> inputData, FiltrexScope scope) {
+        return run(new EvaluationState(inputData, false, sharedSlots, Objects.requireNonNull(scope)));
+    }
+
+    private Map<String, Value> run(EvaluationState state) {
+        var results = new LinkedHashMap<String, Value>();
+        var candidates = candidates(state);
+        for (int i = 0; i < roots.length; i++) {
+            results.put(names[i], candidates[i] ? roots[i].evaluate(state) : Value.FALSE);
+        }
+        return results;
+    }
+
+    /**
+     * Run every rule with the given input data, waiting for async values without blocking.
+     * When a rule needs an async value that is not ready, that rule is restarted once the value
+     * completes; rules that already finished, and shared results, are kept.
+     * @param inputData Values made available to the filtrex rules
+     * @return a future holding the result of each rule by name
+     * @see FiltrexExecutor#runAsync(Map)
+     */
+    public CompletableFuture<Map<String, Value>> runAsync(Map<String, Value> inputData) {
+        var result = new CompletableFuture<Map<String, Value>>();
+        attempt(new EvaluationState(inputData, true, sharedSlots), new LinkedHashMap<>(), result);
+        return result;
+    }
+
+    /**
+     * Run every rule with the given input data without blocking on async values, keeping the
+     * results of lazy values in the scope rather than in the input data
+     * @param inputData Values made available to the filtrex rules, which may be shared with other runs
+     * @param scope holds the results of lazy values, and may be shared by the runs of one request
+     * @return a future holding the result of each rule by name
+     * @see #runAsync(Map)
+     */
+    public CompletableFuture<Map<String, Value>> runAsync(Map<String, Value> inputData, FiltrexScope scope) {
+        var result = new CompletableFuture<Map<String, Value>>();
+        attempt(new EvaluationState(inputData, true, sharedSlots, Objects.requireNonNull(scope)), new LinkedHashMap<>(), result);
+        return result;
+    }
+
+    private void attempt(EvaluationState state, Map<String, Value> results, CompletableFuture<Map<String, Value>> result) {
+        try {
+            // Cheap to repeat, since the symbols it needed before a suspension are resolved by now
+            var candidates = candidates(state);
+            for (int i = results.size(); i < roots.length; i++) {
+                results.put(names[i], candidates[i] ? roots[i].evaluate(state) : Value.FALSE);
+            }
+            result.complete(results);
+        } catch (AsyncSuspension suspension) {
+            suspension.future.whenComplete((value, error) -> attempt(state, results, result));
+            suspension.value.flush();
+        } catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    /**
+     * Turns a forest of compiled rules into a graph. Identical sub-trees are first merged into
+     * a single node, and then every merged node reachable from more than one place is wrapped
+     * in a {@link FiltrexNode.Shared} node with its own result slot.
+     */
+    static class SubexpressionEliminator {
+        private final Map<String, FiltrexNode> canonical = new HashMap<>();
+        private final Map<FiltrexNode, Integer> ids = new IdentityHashMap<>();
+        private final Map<FiltrexNode, Boolean> shareable = new IdentityHashMap<>();
+        private final Map<FiltrexNode, Integer> references = new IdentityHashMap<>();
+        private final Map<FiltrexNode, FiltrexNode> wrapped = new IdentityHashMap<>();
+        int slots;
+
+        FiltrexNode[] share(FiltrexNode[] roots) {
+            var merged = new FiltrexNode[roots.length];
+            for (int i = 0; i < roots.length; i++) {
+                merged[i] = merge(roots[i]);
+                count(merged[i]);
+            }
+            var result = new FiltrexNode[roots.length];
+            for (int i = 0; i < roots.length; i++) {
+                result[i] = wrap(merged[i]);
+            }
+            return result;
+        }
+
+        private FiltrexNode merge(FiltrexNode node) {
+            var children = node.children();
+            var mergedChildren = new FiltrexNode[children.length];
+            var key = new StringBuilder(node.describe()).append('(');
+            var canShare = !(node instanceof FiltrexNode.FunctionCall call) || call.isPure();
+            var changed = false;
+            for (int i = 0; i < children.length; i++) {
+                mergedChildren[i] = merge(children[i]);
+                changed |= mergedChildren[i] != children[i];
+                canShare &= shareable.get(mergedChildren[i]);
+                key.append(ids.get(mergedChildren[i])).append(',');
+            }
+            var rebuilt = changed ? node.withChildren(mergedChildren) : node;
+            var existing = canonical.putIfAbsent(key.append(')').toString(), rebuilt);
+            if (existing != null) {
+                return existing;
+            }
+            ids.put(rebuilt, ids.size());
+            shareable.put(rebuilt, canShare);
+            return rebuilt;
+        }
+
+        private void count(FiltrexNode node) {
+            var seen = references.merge(node, 1, Integer::sum);
+            if (seen == 1) {
+                for (var child : node.children()) {
+                    count(child);
+                }
+            }
+        }
+
+        private FiltrexNode wrap(FiltrexNode node) {
+            var done = wrapped.get(node);
+            if (done != null) {
+                return done;
+            }
+            var children = node.children();
+            var wrappedChildren = new FiltrexNode[children.length];
+            var changed = false;
+            for (int i = 0; i < children.length; i++) {
+                wrappedChildren[i] = wrap(children[i]);
+                changed |= wrappedChildren[i] != children[i];
+            }
+            FiltrexNode result = changed ? node.withChildren(wrappedChildren) : node;
+            // Leaves are cheap enough that caching them would not pay for itself
+            if (children.length > 0 && references.get(node) > 1 && shareable.get(node)) {
+                result = new FiltrexNode.Shared(slots++, result);
+            }
+            wrapped.put(node, result);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.Stream;
+
+/**
+ * Declares the shape of the input data up front, so that expressions can be compiled to read
+ * each symbol from a fixed slot of a {@link FiltrexContext} rather than walking nested maps.
+ * Instances are immutable; each "with" method returns a modified copy.
+ * <p>
+ * Example usage:
+ * <pre>
+ * var schema = FiltrexSchema.EMPTY
+ *     .withField("state", ValueType.STRING)
+ *     .withField("user.age", ValueType.DECIMAL);
+ * var executor = new FiltrexExecutor("user.age &gt;= 18 and state == \"CA\"", FiltrexOptions.DEFAULT.withSchema(schema));
+ * int age = schema.slot("user.age");
+ * var result = executor.run(schema.newContext().set("state", new Value("CA")).set(age, new Value(30)));
+ * </pre>
+ * Expressions compiled with a schema may only reference its fields (and built-in functions).
+ * Application functions are either registered in a {@link FunctionRegistry} or declared as fields of
+ * type {@link ValueType#FUNCTION}.
+ */
+public final class FiltrexSchema {
+    /**
+     * A schema with no fields
+     */
+    public static final FiltrexSchema EMPTY = new FiltrexSchema(List.of(), List.of());
+
+    private final List<String> names;
+    private final List<ValueType> types;
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    /**
+     * Slots by the keys of their path, so that the quoted symbol 'a.b' (one key) does not bind to the field a.b (two keys)
+     */
+    private final Map<List<String>, Integer> pathSlots = new HashMap<>();
+
+    private FiltrexSchema(List<String> names, List<ValueType> types) {
+        this.names = names;
+        this.types = types;
+        for (int i = 0; i < names.size(); i++) {
+            slots.put(names.get(i), i);
+            pathSlots.put(List.of(names.get(i).split("\\.")), i);
+        }
+    }
+
+    /**
+     * Return a copy of this schema with one more field
+     * @param name the dotted path of the field as it is written in expressions, such as user.age.
+     *             Every dot separates two keys, so a key that itself contains a dot cannot be a field.
+     * @param type the type values of the field must have once resolved. Null values and lazy
+     *             values (functions, memoized and async values) are always accepted.
+     * @return the new schema
+     * @throws IllegalArgumentException if the name is invalid, already declared, or nested
+     * inside (or around) another field
+     */
+    public FiltrexSchema withField(String name, ValueType type) {
+        Objects.requireNonNull(type);
+        if (name.isEmpty() || name.startsWith(".") || name.endsWith(".") || name.contains("..")) {
+            throw new IllegalArgumentException("Invalid field name " + name);
+        }
+        for (var existing : names) {
+            if (existing.equals(name) || existing.startsWith(name + ".") || name.startsWith(existing + ".")) {
+                throw new IllegalArgumentException("Field " + name + " conflicts with " + existing);
+            }
+        }
+        return new FiltrexSchema(
+                Stream.concat(names.stream(), Stream.of(name)).toList(),
+                Stream.concat(types.stream(), Stream.of(type)).toList()
+        );
+    }
+
+    /**
+     * @param name the dotted path of a field
+     * @return the slot holding the field in a {@link FiltrexContext}
+     * @throws IllegalArgumentException if there is no such field
+     */
+    public int slot(String name) {
+        var slot = slots.get(name);
+        if (slot == null) {
+            throw new IllegalArgumentException("Unknown field " + name);
+        }
+        return slot;
+    }
+
+    /**
+     * @return the number of fields
+     */
+    public int size() {
+        return names.size();
+    }
+
+    /**
+     * @return a new context with every field set to null
+     */
+    public FiltrexContext newContext() {
+        return new FiltrexContext(this);
+    }
+
+    ValueType type(int slot) {
+        return types.get(slot);
+    }
+
+    String name(int slot) {
+        return names.get(slot);
+    }
+
+    /**
+     * Bind the symbols of a compiled tree to the slots of this schema
+     * @param node a compiled tree
+     * @return the bound tree
+     * @throws FiltrexRuntimeException if the tree references something that is not a field or a registered function
+     */
+    FiltrexNode bind(FiltrexNode node) {
+        if (node instanceof FiltrexNode.Symbol symbol) {
+            return new FiltrexNode.Symbol(symbol.path, bindPath(symbol.path));
+        }
+        var children = node.children();
+        var bound = new FiltrexNode[children.length];
+        for (int i = 0; i < children.length; i++) {
+            bound[i] = bind(children[i]);
+        }
+        if (node instanceof FiltrexNode.FunctionCall call && call.function == null) {
+            return new FiltrexNode.FunctionCall(call.path, bound.length == 0 ? null : bound[0], null, bindPath(call.path), call.mode);
+        }
+        return children.length == 0 ? node : node.withChildren(bound);
+    }
+
+    private int bindPath(String[] path) {
+        var slot = pathSlots.get(List.of(path));
+        if (slot == null) {
+            throw new FiltrexRuntimeException("Unknown symbol " + String.join(".", path));
+        }
+        return slot;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof FiltrexSchema that)) {
+            return false;
+        }
+        return names.equals(that.names) && types.equals(that.types);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(names, types);
+    }
+}
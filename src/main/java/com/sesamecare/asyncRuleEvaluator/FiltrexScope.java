@@ -0,0 +1,169 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Holds the results of lazy values for one evaluation, or one batch of evaluations, instead of
+ * storing them in the values themselves. Runs given a scope never modify the input data, so a
+ * large context built from {@link Value#memoized} and {@link Value#async} lookups can be shared
+ * between requests (and threads) while each request still does every lookup at most once.
+ * <p>
+ * Within a scope:
+ * <ul>
+ *     <li>a memoized value runs its function once</li>
+ *     <li>an async value starts its lookup once</li>
+ *     <li>a {@link Value#func} is called once for each distinct list of arguments, whether it is
+ *     referenced as a symbol or called as a function. Arguments are only the same when a function
+ *     could not tell them apart: "1" and "1.0", or 1 and 1.00, are different arguments, and lazy
+ *     arguments are compared by identity.</li>
+ * </ul>
+ * Example usage:
+ * <pre>
+ * var tenant = Map.of("config", Value.memoized(args -&gt; loadConfig()));  // built once, shared
+ * var scope = new FiltrexScope();
+ * executor.run(tenant, scope);
+ * otherExecutor.run(tenant, scope);  // reuses the config loaded by the first run
+ * </pre>
+ * Lazy values found inside arrays or maps are resolved in place, as they are without a scope.
+ * A scope is thread safe, but is meant to be discarded when its request is done.
+ */
+public final class FiltrexScope {
+    private final ConcurrentHashMap<Object, CompletableFuture<Value>> results = new ConcurrentHashMap<>();
+
+    /**
+     * Create an empty scope
+     */
+    public FiltrexScope() {
+    }
+
+    /**
+     * @return the number of lazy values and distinct function calls held
+     */
+    public int size() {
+        return results.size();
+    }
+
+    /**
+     * Lazy values are keyed by identity, since their hash changes if something else resolves them
+     */
+    private record Lazy(Value value) {
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Lazy that && value == that.value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    private record Call(Lazy function, List<Object> args) {}
+
+    /**
+     * The exact form of an argument: the raw text of a string, a decimal with its scale (BigDecimal
+     * equality includes it), arrays and maps by these keys of their contents, and lazy values by identity
+     */
+    private record Argument(ValueType type, Object value) {}
+
+    private static Object argument(Value value) {
+        var type = value.getType();
+        return switch (type) {
+            case BOOLEAN -> new Argument(type, value.asBoolean());
+            case NULL -> new Argument(type, null);
+            case STRING -> new Argument(type, value.toString());
+            case DECIMAL -> new Argument(type, value.asDecimal());
+            case ARRAY -> new Argument(type, arguments(value.getArray()));
+            case MAP -> {
+                var map = new HashMap<String, Object>();
+                value.getMap().forEach((k, v) -> map.put(k, argument(v)));
+                yield new Argument(type, map);
+            }
+            default -> new Argument(type, new Lazy(value));
+        };
+    }
+
+    private static List<Object> arguments(List<Value> values) {
+        var keys = new ArrayList<Object>(values.size());
+        for (var value : values) {
+            keys.add(argument(value));
+        }
+        return keys;
+    }
+
+    /**
+     * @param value any value
+     * @return the value, or its result if it is a lazy value
+     */
+    Value resolve(Value value) {
+        switch (value.getType()) {
+            case MEMOIZED:
+                return memo(new Lazy(value), value::compute);
+            case FUNCTION:
+                return call(value, Value.EMPTY.getArray());
+            case ASYNC:
+                var future = start(value);
+                if (!future.isDone()) {
+                    value.flush();
+                }
+                return future.join();
+            default:
+                return value;
+        }
+    }
+
+    /**
+     * @param value an async value
+     * @return the future holding its result, starting the lookup if this scope has not yet
+     */
+    CompletableFuture<Value> start(Value value) {
+        return results.computeIfAbsent(new Lazy(value), k -> value.startUnshared());
+    }
+
+    /**
+     * @param function a function value from the input data
+     * @param args the arguments of the call
+     * @return the result of the call
+     */
+    Value call(Value function, List<Value> args) {
+        if (function.getType() != ValueType.FUNCTION) {
+            // Let the value report the error
+            return function.apply(args);
+        }
+        return memo(new Call(new Lazy(function), arguments(args)), () -> function.apply(args));
+    }
+
+    private Value memo(Object key, Supplier<Value> compute) {
+        var existing = results.get(key);
+        if (existing == null) {
+            var mine = new CompletableFuture<Value>();
+            existing = results.putIfAbsent(key, mine);
+            if (existing == null) {
+                try {
+                    var result = compute.get();
+                    mine.complete(result);
+                    return result;
+                } catch (RuntimeException | Error e) {
+                    // Let a later use try again
+                    results.remove(key, mine);
+                    mine.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        try {
+            return existing.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * The functions an expression can call by name. Calls are bound to their function when the
+ * expression is compiled, so running it involves no name lookups at all. Calls to names that
+ * are not registered still look for a {@link Value#func} in the input data when they run.
+ * Instances are immutable; each "with" method returns a modified copy.
+ * <p>
+ * Example usage:
+ * <pre>
+ * var functions = FunctionRegistry.BUILT_IN
+ *     .withFunction("clamp", 3, true, args -&gt; ...)
+ *     .withFunction("geo.distance", 2, 3, true, args -&gt; ...);
+ * var executor = new FiltrexExecutor("clamp(score, 0, 100) &gt; 50", FiltrexOptions.DEFAULT.withFunctions(functions));
+ * </pre>
+ * A pure function always returns the same result for the same arguments and has no side effects.
+ * Calls to pure functions with constant arguments are computed once when the expression is compiled,
+ * and a {@link FiltrexRuleSet} evaluates identical pure calls only once per run.
+ */
+public final class FunctionRegistry {
+    /**
+     * Used as a maximum number of arguments for functions that take any number of them
+     */
+    public static final int UNLIMITED = Integer.MAX_VALUE;
+
+    /**
+     * The built-in functions, such as abs, min and substr
+     */
+    public static final FunctionRegistry BUILT_IN = BuiltInFunctions.register(new FunctionRegistry(Map.of()));
+
+    private final Map<String, Definition> functions;
+
+    private FunctionRegistry(Map<String, Definition> functions) {
+        this.functions = functions;
+    }
+
+    /**
+     * A registered function
+     * @param name the name it is called by
+     * @param minArgs the fewest arguments it takes
+     * @param maxArgs the most arguments it takes, or {@link #UNLIMITED}
+     * @param pure true if it always returns the same result for the same arguments
+     * @param body computes the result from the arguments and the executor's arithmetic
+     */
+    record Definition(String name, int minArgs, int maxArgs, boolean pure, BiFunction<List<Value>, NumericMode, Value> body) {
+        /**
+         * @throws FiltrexRuntimeException if the function does not take the given number of arguments
+         */
+        void checkArity(int count) {
+            if (count >= minArgs && count <= maxArgs) {
+                return;
+            }
+            String expected;
+            if (minArgs == maxArgs) {
+                expected = Integer.toString(minArgs);
+            } else if (maxArgs == UNLIMITED) {
+                expected = "at least " + minArgs;
+            } else {
+                expected = minArgs + " to " + maxArgs;
+            }
+            throw new FiltrexRuntimeException("Function " + name + " takes " + expected + " arguments, not " + count);
+        }
+    }
+
+    /**
+     * Return a copy of this registry with one more function that takes a fixed number of arguments
+     * @param name the name the function is called by, which may contain dots
+     * @param arity the number of arguments the function takes
+     * @param pure true if the function always returns the same result for the same arguments
+     * @param function computes the result from the arguments. It must not modify the argument list.
+     * @return the new registry
+     * @throws IllegalArgumentException if the name is empty or already registered
+     */
+    public FunctionRegistry withFunction(String name, int arity, boolean pure, Function<List<Value>, Value> function) {
+        return withFunction(name, arity, arity, pure, function);
+    }
+
+    /**
+     * Return a copy of this registry with one more function
+     * @param name the name the function is called by, which may contain dots
+     * @param minArgs the fewest arguments the function takes
+     * @param maxArgs the most arguments the function takes, or {@link #UNLIMITED}
+     * @param pure true if the function always returns the same result for the same arguments
+     * @param function computes the result from the arguments. It must not modify the argument list.
+     * @return the new registry
+     * @throws IllegalArgumentException if the name is empty or already registered, or the argument counts are invalid
+     */
+    public FunctionRegistry withFunction(String name, int minArgs, int maxArgs, boolean pure, Function<List<Value>, Value> function) {
+        Objects.requireNonNull(function);
+        if (minArgs < 0 || maxArgs < minArgs) {
+            throw new IllegalArgumentException("Invalid argument counts " + minArgs + " to " + maxArgs + " for " + name);
+        }
+        return with(new Definition(name, minArgs, maxArgs, pure, new Adapter(function)));
+    }
+
+    /**
+     * Adapts an application function to the signature of the built-ins. A record rather than a
+     * lambda so that registries built the same way from the same functions are equal.
+     */
+    private record Adapter(Function<List<Value>, Value> function) implements BiFunction<List<Value>, NumericMode, Value> {
+        @Override
+        public Value apply(List<Value> args, NumericMode mode) {
+            return function.apply(args);
+        }
+    }
+
+    FunctionRegistry with(Definition definition) {
+        if (definition.name().isEmpty()) {
+            throw new IllegalArgumentException("Invalid function name");
+        }
+        if (functions.containsKey(definition.name())) {
+            throw new IllegalArgumentException("Function " + definition.name() + " is already registered");
+        }
+        var copy = new HashMap<>(functions);
+        copy.put(definition.name(), definition);
+        return new FunctionRegistry(copy);
+    }
+
+    /**
+     * @param name a function name
+     * @return true if a function with that name is registered
+     */
+    public boolean contains(String name) {
+        return functions.containsKey(name);
+    }
+
+    /**
+     * @param name a function name
+     * @return the function, or null if none is registered with that name
+     */
+    Definition get(String name) {
+        return functions.get(name);
+    }
+
+    /**
+     * Registries are equal when they hold the same names with the same argument counts, purity and
+     * function objects. Functions are compared by identity, so options built from the same function
+     * instances share {@link FiltrexExecutor#compile(String, FiltrexOptions)} cache entries.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof FunctionRegistry that && functions.equals(that.functions);
+    }
+
+    @Override
+    public int hashCode() {
+        return functions.hashCode();
+    }
+}
@@ -0,0 +1,259 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.math.MathContext;
+import java.util.Objects;
+
+/**
+ * How an executor does arithmetic (+ - * / % ^, negation and sqrt) and compares numbers.
+ * Whole numbers that fit in a long are added, subtracted, multiplied and so on exactly
+ * in every mode, as long as the result also fits and needs no rounding.
+ * <ul>
+ *     <li>{@link #EXACT}, the default, uses BigDecimal with unlimited precision. A division
+ *     with no exact result, such as 1 / 3, throws, and sqrt rounds to 4 significant digits.</li>
+ *     <li>{@link #exact(MathContext)} uses BigDecimal rounded to the given precision, so 1 / 3
+ *     has a result. sqrt rounds to the same precision.</li>
+ *     <li>{@link #DOUBLE} uses IEEE doubles, which is much faster but rounds in binary, so
+ *     0.1 + 0.2 is 0.30000000000000004. Fractional powers are allowed, and a result that
+ *     is not a finite number (division by zero, the square root of a negative number,
+ *     overflow) throws rather than producing NaN or Infinity.</li>
+ * </ul>
+ */
+public final class NumericMode {
+    /**
+     * BigDecimal arithmetic with unlimited precision
+     */
+    public static final NumericMode EXACT = new NumericMode(null, false);
+
+    /**
+     * IEEE double arithmetic and comparisons
+     */
+    public static final NumericMode DOUBLE = new NumericMode(null, true);
+
+    private final MathContext mathContext;
+    private final boolean doubles;
+
+    /**
+     * True when a result that fits in a long never needs rounding
+     */
+    private final boolean longs;
+
+    private NumericMode(MathContext mathContext, boolean doubles) {
+        this.mathContext = mathContext;
+        this.doubles = doubles;
+        // A long has at most 19 digits
+        this.longs = mathContext == null || mathContext.getPrecision() == 0 || mathContext.getPrecision() >= 19;
+    }
+
+    /**
+     * @param mathContext the precision and rounding of every result
+     * @return BigDecimal arithmetic rounded to the given context
+     */
+    public static NumericMode exact(MathContext mathContext) {
+        return new NumericMode(Objects.requireNonNull(mathContext), false);
+    }
+
+    /**
+     * @return the rounding applied to BigDecimal results, or null if they are not rounded
+     */
+    public MathContext getMathContext() {
+        return mathContext;
+    }
+
+    /**
+     * @return true if arithmetic is done with doubles
+     */
+    public boolean isDouble() {
+        return doubles;
+    }
+
+    Value add(Value lhs, Value rhs) {
+        if (longs && lhs.isLong() && rhs.isLong()) {
+            try {
+                return Value.of(Math.addExact(lhs.longValue(), rhs.longValue()));
+            } catch (ArithmeticException overflow) {
+                // Fall back to the slow path
+            }
+        }
+        if (doubles) {
+            return finite(lhs.asDouble() + rhs.asDouble());
+        }
+        var sum = mathContext == null ? lhs.asDecimal().add(rhs.asDecimal()) : lhs.asDecimal().add(rhs.asDecimal(), mathContext);
+        return new Value(sum);
+    }
+
+    Value subtract(Value lhs, Value rhs) {
+        if (longs && lhs.isLong() && rhs.isLong()) {
+            try {
+                return Value.of(Math.subtractExact(lhs.longValue(), rhs.longValue()));
+            } catch (ArithmeticException overflow) {
+                // Fall back to the slow path
+            }
+        }
+        if (doubles) {
+            return finite(lhs.asDouble() - rhs.asDouble());
+        }
+        var difference = mathContext == null ? lhs.asDecimal().subtract(rhs.asDecimal())
+                : lhs.asDecimal().subtract(rhs.asDecimal(), mathContext);
+        return new Value(difference);
+    }
+
+    Value multiply(Value lhs, Value rhs) {
+        if (longs && lhs.isLong() && rhs.isLong()) {
+            try {
+                return Value.of(Math.multiplyExact(lhs.longValue(), rhs.longValue()));
+            } catch (ArithmeticException overflow) {
+                // Fall back to the slow path
+            }
+        }
+        if (doubles) {
+            return finite(lhs.asDouble() * rhs.asDouble());
+        }
+        var product = mathContext == null ? lhs.asDecimal().multiply(rhs.asDecimal())
+                : lhs.asDecimal().multiply(rhs.asDecimal(), mathContext);
+        return new Value(product);
+    }
+
+    Value divide(Value lhs, Value rhs) {
+        // Only exact quotients stay whole numbers, and the slow path reports division by zero
+        if (longs && lhs.isLong() && rhs.isLong() && rhs.longValue() != 0 && lhs.longValue() % rhs.longValue() == 0
+                && !(lhs.longValue() == Long.MIN_VALUE && rhs.longValue() == -1)) {
+            return Value.of(lhs.longValue() / rhs.longValue());
+        }
+        if (doubles) {
+            var divisor = rhs.asDouble();
+            if (divisor == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            return finite(lhs.asDouble() / divisor);
+        }
+        var quotient = mathContext == null ? lhs.asDecimal().divide(rhs.asDecimal())
+                : lhs.asDecimal().divide(rhs.asDecimal(), mathContext);
+        return new Value(quotient);
+    }
+
+    Value remainder(Value lhs, Value rhs) {
+        if (longs && lhs.isLong() && rhs.isLong() && rhs.longValue() != 0) {
+            return Value.of(lhs.longValue() % rhs.longValue());
+        }
+        if (doubles) {
+            var divisor = rhs.asDouble();
+            if (divisor == 0) {
+                throw new ArithmeticException("Division by zero");
+            }
+            return finite(lhs.asDouble() % divisor);
+        }
+        var remainder = mathContext == null ? lhs.asDecimal().remainder(rhs.asDecimal())
+                : lhs.asDecimal().remainder(rhs.asDecimal(), mathContext);
+        return new Value(remainder);
+    }
+
+    Value power(Value lhs, Value rhs) {
+        if (longs && lhs.isLong() && rhs.isLong()) {
+            var power = power(lhs.longValue(), (int) rhs.longValue());
+            if (power != null) {
+                return power;
+            }
+        }
+        if (doubles) {
+            return finite(Math.pow(lhs.asDouble(), rhs.asDouble()));
+        }
+        var exponent = rhs.asDecimal().intValue();
+        return new Value(mathContext == null ? lhs.asDecimal().pow(exponent) : lhs.asDecimal().pow(exponent, mathContext));
+    }
+
+    /**
+     * @return base to the given power by repeated squaring, or null if it needs the slow path
+     * (to overflow, or to raise the same error BigDecimal.pow would)
+     */
+    private static Value power(long base, int exponent) {
+        if (exponent < 0 || exponent > 999_999_999) {
+            return null;
+        }
+        long result = 1;
+        try {
+            while (exponent > 0) {
+                if ((exponent & 1) == 1) {
+                    result = Math.multiplyExact(result, base);
+                }
+                exponent >>= 1;
+                if (exponent > 0) {
+                    base = Math.multiplyExact(base, base);
+                }
+            }
+        } catch (ArithmeticException overflow) {
+            return null;
+        }
+        return Value.of(result);
+    }
+
+    Value negate(Value value) {
+        if (longs && value.isLong() && value.longValue() != Long.MIN_VALUE) {
+            return Value.of(-value.longValue());
+        }
+        if (doubles) {
+            return finite(-value.asDouble());
+        }
+        return new Value(mathContext == null ? value.asDecimal().negate() : value.asDecimal().negate(mathContext));
+    }
+
+    Value sqrt(Value value) {
+        if (doubles) {
+            var root = Math.sqrt(value.asDouble());
+            if (Double.isNaN(root)) {
+                throw new ArithmeticException("Square root of a negative number");
+            }
+            return new Value(root);
+        }
+        return new Value(value.asDecimal().sqrt(mathContext == null ? BuiltInFunctions.mathContext : mathContext));
+    }
+
+    /**
+     * Compare two values the way {@link Value#compareTo(Value)} does, except that in double
+     * mode two numbers are compared as doubles
+     * @return -1, 0, or 1
+     */
+    int compare(Value lhs, Value rhs) {
+        if (doubles) {
+            var l = lhs.resolve();
+            var r = rhs.resolve();
+            if (l.getType() == ValueType.DECIMAL && r.getType() == ValueType.DECIMAL && !(l.isLong() && r.isLong())) {
+                var a = l.asDouble();
+                var b = r.asDouble();
+                return a < b ? -1 : (a > b ? 1 : 0);
+            }
+            return l.compareTo(r);
+        }
+        return lhs.compareTo(rhs);
+    }
+
+    private static Value finite(double result) {
+        if (!Double.isFinite(result)) {
+            throw new ArithmeticException("Result is not a finite number");
+        }
+        return new Value(result);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NumericMode that)) {
+            return false;
+        }
+        return doubles == that.doubles && Objects.equals(mathContext, that.mathContext);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mathContext, doubles);
+    }
+
+    @Override
+    public String toString() {
+        if (doubles) {
+            return "DOUBLE";
+        }
+        return mathContext == null ? "EXACT" : "EXACT " + mathContext;
+    }
+}
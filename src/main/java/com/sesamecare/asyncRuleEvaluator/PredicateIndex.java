@@ -0,0 +1,151 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps the value of one symbol to the rules of a {@link FiltrexRuleSet} that can possibly be
+ * true for it. A rule is indexed when its first top level "and" term is an equality or "in"
+ * test of a symbol against constants, such as country == "US" or plan in ("a", "b"); if the
+ * symbol's value matches none of the constants, the rule is false without evaluating it.
+ * <p>
+ * Values are looked up by {@link Value#hashKey(Value, boolean)}. Values that have no key, such as
+ * booleans, nulls and arrays, make every rule in the index a candidate. So do lazy values that
+ * have not been resolved yet (or that sit on the symbol's path), since the index never looks
+ * anything up that the rules themselves might not.
+ */
+class PredicateIndex {
+    final FiltrexNode.Symbol symbol;
+    /**
+     * true for exact "in" tests, where the types must also match
+     */
+    final boolean typed;
+    final List<Integer> rules = new ArrayList<>();
+    final Map<String, List<Integer>> rulesByKey = new HashMap<>();
+
+    PredicateIndex(FiltrexNode.Symbol symbol, boolean typed) {
+        this.symbol = symbol;
+        this.typed = typed;
+    }
+
+    /**
+     * An indexable term of a rule: a symbol tested against a set of constants
+     */
+    record Predicate(FiltrexNode.Symbol symbol, boolean typed, List<Value> constants) {
+        String indexKey() {
+            return symbol.describe() + (typed ? " typed" : "");
+        }
+    }
+
+    /**
+     * Find the indexable term of a rule. Only the first top level "and" term is considered: since
+     * "and" short-circuits, a rule whose first term is false evaluates to false without evaluating
+     * anything else, so skipping it cannot hide an error or a lookup the rule would have made.
+     * @param root the compiled rule
+     * @return the predicate, or null if the first term cannot be indexed
+     */
+    static Predicate find(FiltrexNode root) {
+        var terms = new ArrayList<FiltrexNode>();
+        conjuncts(root, terms);
+        return predicate(terms.get(0));
+    }
+
+    private static void conjuncts(FiltrexNode node, List<FiltrexNode> terms) {
+        if (node instanceof FiltrexNode.And and) {
+            conjuncts(and.lhs, terms);
+            conjuncts(and.rhs, terms);
+        } else {
+            terms.add(node);
+        }
+    }
+
+    private static Predicate predicate(FiltrexNode term) {
+        if (term instanceof FiltrexNode.Equals equals) {
+            if (equals.lhs instanceof FiltrexNode.Symbol symbol && equals.rhs instanceof FiltrexNode.Literal literal) {
+                return keyable(new Predicate(symbol, false, List.of(literal.value)));
+            }
+            if (equals.rhs instanceof FiltrexNode.Symbol symbol && equals.lhs instanceof FiltrexNode.Literal literal) {
+                return keyable(new Predicate(symbol, false, List.of(literal.value)));
+            }
+        } else if (term instanceof FiltrexNode.In in && !in.negate && in.lhs instanceof FiltrexNode.Symbol symbol) {
+            var constants = constantElements(in.rhs);
+            if (constants != null) {
+                return keyable(new Predicate(symbol, in.exactMatch, constants));
+            }
+        }
+        return null;
+    }
+
+    private static Predicate keyable(Predicate predicate) {
+        for (var constant : predicate.constants) {
+            if (constant == null || Value.hashKey(constant, predicate.typed) == null) {
+                return null;
+            }
+        }
+        return predicate;
+    }
+
+    /**
+     * @return the elements of an array built only from constants, or null if it is not one
+     */
+    private static List<Value> constantElements(FiltrexNode node) {
+        if (node instanceof FiltrexNode.Literal literal) {
+            if (literal.value == null) {
+                return null;
+            }
+            if (literal.value.getType() != ValueType.ARRAY) {
+                return List.of(literal.value);
+            }
+            for (var element : literal.value.getArray()) {
+                if (element.getType() == ValueType.ARRAY) {
+                    return null;
+                }
+            }
+            return literal.value.getArray();
+        }
+        if (node instanceof FiltrexNode.ArrayOf list && list.spreadFirst) {
+            var head = constantElements(list.elements[0]);
+            if (head == null) {
+                return null;
+            }
+            var elements = new ArrayList<>(head);
+            for (int i = 1; i < list.elements.length; i++) {
+                if (!(list.elements[i] instanceof FiltrexNode.Literal element)
+                        || element.value == null || element.value.getType() == ValueType.ARRAY) {
+                    return null;
+                }
+                elements.add(element.value);
+            }
+            return elements;
+        }
+        return null;
+    }
+
+    void add(int rule, Predicate predicate) {
+        rules.add(rule);
+        for (var constant : predicate.constants) {
+            var bucket = rulesByKey.computeIfAbsent(Value.hashKey(constant, typed), k -> new ArrayList<>());
+            if (bucket.isEmpty() || bucket.get(bucket.size() - 1) != rule) {
+                bucket.add(rule);
+            }
+        }
+    }
+
+    /**
+     * Mark the rules that can match the current value of the symbol
+     * @param state the run state
+     * @param candidates set to true for every candidate rule
+     */
+    void markCandidates(EvaluationState state, boolean[] candidates) {
+        var value = state.peek(symbol.path, symbol.slot);
+        var key = value == null ? null : Value.hashKey(value, typed);
+        var matching = key == null ? rules : rulesByKey.get(key);
+        if (matching != null) {
+            for (var rule : matching) {
+                candidates[rule] = true;
+            }
+        }
+    }
+}
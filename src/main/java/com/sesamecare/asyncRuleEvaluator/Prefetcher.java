@@ -0,0 +1,93 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * Resolves the lazy values an expression may reference before it runs, concurrently
+ * rather than one after another as evaluation would. The symbol paths are collected
+ * once, from the compiled tree, into a trie so that a value shared by several paths
+ * (user in user.plan and user.age) is only resolved once.
+ * <p>
+ * Only memoized and async values are prefetched, because resolving them early does
+ * not change the result of the expression. Plain function values are left alone
+ * since they are called every time they are referenced anyway.
+ */
+class Prefetcher {
+    private final Map<String, Prefetcher> children = new LinkedHashMap<>();
+
+    /**
+     * Build the trie of every symbol path referenced by a compiled expression
+     * @param root the compiled expression
+     * @return the trie root, which corresponds to the input data itself
+     */
+    static Prefetcher forTree(FiltrexNode root) {
+        var trie = new Prefetcher();
+        trie.collect(root);
+        return trie;
+    }
+
+    private void collect(FiltrexNode node) {
+        if (node instanceof FiltrexNode.Symbol symbol) {
+            add(symbol.path, symbol.path.length);
+        } else if (node instanceof FiltrexNode.FunctionCall call) {
+            // The function itself is called with arguments, but the objects leading to it can be fetched
+            add(call.path, call.path.length - 1);
+        }
+        for (var child : node.children()) {
+            collect(child);
+        }
+    }
+
+    private void add(String[] path, int length) {
+        var current = this;
+        for (int i = 0; i < length; i++) {
+            current = current.children.computeIfAbsent(path[i], k -> new Prefetcher());
+        }
+    }
+
+    /**
+     * Start resolving every lazy value reachable through the trie
+     * @param data the map at this level of the trie
+     * @param executor runs the memoized lookups
+     * @return a future that completes when everything reachable has been resolved or has failed.
+     * Failures are not reported here; evaluation will run into them itself if it needs those values.
+     */
+    CompletableFuture<Void> prefetch(Map<String, Value> data, Executor executor) {
+        var pending = new ArrayList<CompletableFuture<Void>>();
+        var started = new ArrayList<Value>();
+        for (var entry : children.entrySet()) {
+            var value = data.get(entry.getKey());
+            if (value == null) {
+                continue;
+            }
+            var child = entry.getValue();
+            CompletableFuture<Value> resolved = switch (value.getType()) {
+                case MEMOIZED -> CompletableFuture.supplyAsync(value::resolve, executor);
+                case ASYNC -> {
+                    started.add(value);
+                    // Composed so that a lookup that throws or returns no future fails like any other
+                    yield CompletableFuture.completedFuture(value).thenCompose(Value::start).thenApply(v -> value.resolve());
+                }
+                case MAP -> CompletableFuture.completedFuture(value);
+                default -> null;
+            };
+            if (resolved == null) {
+                continue;
+            }
+            pending.add(resolved
+                    .thenCompose(v -> v.getType() == ValueType.MAP && !child.children.isEmpty()
+                            ? child.prefetch(v.getMap(), executor)
+                            : CompletableFuture.<Void>completedFuture(null))
+                    .exceptionally(t -> null));
+        }
+        // Keys queued by batch loaders at this level all go out together
+        for (var value : started) {
+            value.flush();
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0]));
+    }
+}
@@ -0,0 +1,280 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * The compiled form of a ~= pattern. Most patterns in practice are a literal with an optional
+ * ^ or $ anchor, or an alternation of literals, and those are matched with plain string
+ * operations rather than {@link java.util.regex.Matcher#find()}. Everything else is a {@link Pattern}.
+ * Either way, {@link #find(String)} gives the same answer the Pattern would.
+ */
+abstract class StringMatcher {
+    private static final String META = "\\^$.|?*+()[]{}";
+
+    final String regex;
+
+    StringMatcher(String regex) {
+        this.regex = regex;
+    }
+
+    /**
+     * @param text the text to search
+     * @return true if the pattern matches anywhere in the text
+     */
+    abstract boolean find(String text);
+
+    /**
+     * Compile a pattern into the cheapest matcher that behaves the same way
+     * @param regex a Java regular expression
+     * @return the matcher
+     * @throws java.util.regex.PatternSyntaxException if the pattern is invalid
+     */
+    static StringMatcher compile(String regex) {
+        var alternatives = new ArrayList<String>();
+        var current = new StringBuilder();
+        var start = false;
+        var end = false;
+        int i = 0;
+        if (!regex.isEmpty() && regex.charAt(0) == '^') {
+            start = true;
+            i = 1;
+        }
+        for (; i < regex.length(); i++) {
+            var c = regex.charAt(i);
+            if (c == '\\') {
+                // A backslash before anything but a letter or digit just makes it literal
+                if (i + 1 == regex.length() || Character.isLetterOrDigit(regex.charAt(i + 1)) || !plain(regex.charAt(i + 1))) {
+                    return new Regex(regex);
+                }
+                current.append(regex.charAt(++i));
+            } else if (c == '$' && i == regex.length() - 1) {
+                end = true;
+            } else if (c == '|') {
+                alternatives.add(current.toString());
+                current.setLength(0);
+            } else if (META.indexOf(c) >= 0 || !plain(c)) {
+                return new Regex(regex);
+            } else {
+                current.append(c);
+            }
+        }
+        alternatives.add(current.toString());
+
+        if (alternatives.size() > 1) {
+            // The anchors would only apply to the first or last alternative
+            return start || end ? new Regex(regex) : new AnyOf(regex, alternatives);
+        }
+        var literal = alternatives.get(0);
+        if (start && end) {
+            return new Exact(regex, literal);
+        }
+        if (start) {
+            return new Prefix(regex, literal);
+        }
+        if (end) {
+            return new Suffix(regex, literal);
+        }
+        return new Contains(regex, literal);
+    }
+
+    /**
+     * Characters that match only themselves in a pattern and can never be part of a line terminator
+     */
+    private static boolean plain(char c) {
+        return !Character.isISOControl(c) && !Character.isSurrogate(c) && c != '\u2028' && c != '\u2029';
+    }
+
+    /**
+     * $ matches at the end of the text, and also just before a line terminator that ends it
+     * @return the length of the text without a final line terminator, or -1 if it does not end with one
+     */
+    static int beforeFinalTerminator(String text) {
+        var length = text.length();
+        if (length == 0) {
+            return -1;
+        }
+        var last = text.charAt(length - 1);
+        if (last == '\n') {
+            return length > 1 && text.charAt(length - 2) == '\r' ? length - 2 : length - 1;
+        }
+        if (last == '\r' || last == '\u0085' || last == '\u2028' || last == '\u2029') {
+            return length - 1;
+        }
+        return -1;
+    }
+
+    static final class Contains extends StringMatcher {
+        private final String literal;
+
+        Contains(String regex, String literal) {
+            super(regex);
+            this.literal = literal;
+        }
+
+        @Override
+        boolean find(String text) {
+            return text.contains(literal);
+        }
+    }
+
+    static final class Prefix extends StringMatcher {
+        private final String literal;
+
+        Prefix(String regex, String literal) {
+            super(regex);
+            this.literal = literal;
+        }
+
+        @Override
+        boolean find(String text) {
+            return text.startsWith(literal);
+        }
+    }
+
+    static final class Suffix extends StringMatcher {
+        private final String literal;
+
+        Suffix(String regex, String literal) {
+            super(regex);
+            this.literal = literal;
+        }
+
+        @Override
+        boolean find(String text) {
+            if (text.endsWith(literal)) {
+                return true;
+            }
+            var end = beforeFinalTerminator(text);
+            return end >= literal.length() && text.startsWith(literal, end - literal.length());
+        }
+    }
+
+    static final class Exact extends StringMatcher {
+        private final String literal;
+
+        Exact(String regex, String literal) {
+            super(regex);
+            this.literal = literal;
+        }
+
+        @Override
+        boolean find(String text) {
+            return text.equals(literal)
+                    || (beforeFinalTerminator(text) == literal.length() && text.startsWith(literal));
+        }
+    }
+
+    /**
+     * Matches any of several literals in one pass over the text, using an Aho-Corasick automaton
+     */
+    static final class AnyOf extends StringMatcher {
+        private final char[][] labels;
+        private final int[][] targets;
+        private final int[] failure;
+        private final boolean[] accepting;
+
+        AnyOf(String regex, List<String> literals) {
+            super(regex);
+            var transitions = new ArrayList<TreeMap<Character, Integer>>();
+            var accepts = new ArrayList<Boolean>();
+            transitions.add(new TreeMap<>());
+            accepts.add(false);
+            for (var literal : literals) {
+                int state = 0;
+                for (int i = 0; i < literal.length(); i++) {
+                    var next = transitions.get(state).get(literal.charAt(i));
+                    if (next == null) {
+                        next = transitions.size();
+                        transitions.add(new TreeMap<>());
+                        accepts.add(false);
+                        transitions.get(state).put(literal.charAt(i), next);
+                    }
+                    state = next;
+                }
+                accepts.set(state, true);
+            }
+
+            int states = transitions.size();
+            labels = new char[states][];
+            targets = new int[states][];
+            failure = new int[states];
+            accepting = new boolean[states];
+            for (int s = 0; s < states; s++) {
+                var edges = transitions.get(s);
+                labels[s] = new char[edges.size()];
+                targets[s] = new int[edges.size()];
+                int e = 0;
+                for (var edge : edges.entrySet()) {
+                    labels[s][e] = edge.getKey();
+                    targets[s][e++] = edge.getValue();
+                }
+                accepting[s] = accepts.get(s);
+            }
+
+            // Breadth first, so every state's failure target is finished before the state itself
+            var queue = new ArrayDeque<Integer>();
+            for (var child : targets[0]) {
+                queue.add(child);
+            }
+            while (!queue.isEmpty()) {
+                int state = queue.poll();
+                for (int e = 0; e < labels[state].length; e++) {
+                    int child = targets[state][e];
+                    int fallback = failure[state];
+                    while (fallback != 0 && step(fallback, labels[state][e]) < 0) {
+                        fallback = failure[fallback];
+                    }
+                    int next = step(fallback, labels[state][e]);
+                    failure[child] = next < 0 ? 0 : next;
+                    accepting[child] |= accepting[failure[child]];
+                    queue.add(child);
+                }
+            }
+        }
+
+        private int step(int state, char c) {
+            int e = Arrays.binarySearch(labels[state], c);
+            return e < 0 ? -1 : targets[state][e];
+        }
+
+        @Override
+        boolean find(String text) {
+            if (accepting[0]) {
+                return true;
+            }
+            int state = 0;
+            for (int i = 0; i < text.length(); i++) {
+                var c = text.charAt(i);
+                int next = step(state, c);
+                while (next < 0 && state != 0) {
+                    state = failure[state];
+                    next = step(state, c);
+                }
+                state = next < 0 ? 0 : next;
+                if (accepting[state]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    static final class Regex extends StringMatcher {
+        private final Pattern pattern;
+
+        Regex(String regex) {
+            super(regex);
+            this.pattern = Pattern.compile(regex);
+        }
+
+        @Override
+        boolean find(String text) {
+            return pattern.matcher(text).find();
+        }
+    }
+}
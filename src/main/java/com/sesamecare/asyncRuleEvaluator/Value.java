@@ -2,10 +2,14 @@ package com.sesamecare.asyncRuleEvaluator;
 
 import org.apache.commons.lang3.StringUtils;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -23,25 +27,69 @@ public class Value implements Comparable<Value> {
     public int compareTo(Value that) {
         var me = this.resolve();
         var them = that.resolve();
+        if (me.isLong() && them.isLong()) {
+            return Long.compare(me.longValue, them.longValue);
+        }
         if (me.canBeDecimal() && them.canBeDecimal()) {
             return me.asDecimal().compareTo(them.asDecimal());
         }
         return StringUtils.compare(me.toString(), them.toString());
     }
 
+    /**
+     * Changes only when a memoized or async value resolves, see {@link #become(Value)}
+     */
     private ValueType type;
 
+    private static final VarHandle TYPE;
+
+    static {
+        try {
+            TYPE = MethodHandles.lookup().findVarHandle(Value.class, "type", ValueType.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
     private boolean bool;
     private String str;
 
+    /**
+     * Created on demand for decimals that are also held in longValue
+     */
     private BigDecimal decimal;
 
+    /**
+     * Whole numbers that fit in a long (and have no decimal places, since 1.0 prints differently
+     * from 1) are held as a long as well, so that most arithmetic and comparisons avoid BigDecimal
+     */
+    private boolean isLong;
+    private long longValue;
+
+    /**
+     * Results of double arithmetic (see {@link NumericMode#DOUBLE}) are held as a double
+     * until something needs them as a BigDecimal
+     */
+    private boolean isDouble;
+    private double doubleValue;
+
     private List<Value> array;
 
     private Map<String, Value> map;
 
     private Function<List<Value>, Value> func;
 
+    private Function<List<Value>, CompletableFuture<Value>> asyncFunc;
+
+    private CompletableFuture<Value> future;
+
+    private Runnable flush;
+
+    /**
+     * Held while a memoized value runs its function
+     */
+    private ReentrantLock lock;
+
     private Value(boolean b) {
         this.type = ValueType.BOOLEAN;
         this.bool = b;
@@ -70,8 +118,17 @@ public class Value implements Comparable<Value> {
      * @param i the integer to be converted
      */
     public Value(int i) {
+        this((long) i);
+    }
+
+    /**
+     * Create a new Value from a long (becomes a decimal)
+     * @param l the long to be converted
+     */
+    public Value(long l) {
         this.type = ValueType.DECIMAL;
-        this.decimal = BigDecimal.valueOf(i);
+        this.isLong = true;
+        this.longValue = l;
     }
 
     private Value() {
@@ -94,6 +151,11 @@ public class Value implements Comparable<Value> {
     public Value(BigDecimal d) {
         this.type = ValueType.DECIMAL;
         this.decimal = d;
+        // Anything under 19 digits fits, and precision does not allocate the way unscaledValue does
+        if (d.scale() == 0 && (d.precision() < 19 || d.unscaledValue().bitLength() < Long.SIZE)) {
+            this.isLong = true;
+            this.longValue = d.longValue();
+        }
     }
 
     /**
@@ -102,7 +164,13 @@ public class Value implements Comparable<Value> {
      */
     public Value(double d) {
         this.type = ValueType.DECIMAL;
-        this.decimal = BigDecimal.valueOf(d);
+        if (Double.isFinite(d)) {
+            this.isDouble = true;
+            this.doubleValue = d;
+        } else {
+            // Throws, there is no decimal for NaN or Infinity
+            this.decimal = BigDecimal.valueOf(d);
+        }
     }
 
     /**
@@ -115,6 +183,7 @@ public class Value implements Comparable<Value> {
         var memo = new Value();
         memo.type = ValueType.MEMOIZED;
         memo.func = f;
+        memo.lock = new ReentrantLock();
         return memo;
     }
 
@@ -132,6 +201,58 @@ public class Value implements Comparable<Value> {
         return memo;
     }
 
+    /**
+     * Create a new Value from a function that starts an asynchronous lookup. The function
+     * is called once, when the value is first needed, and the value then "becomes" the
+     * result of the future. {@link FiltrexExecutor#runAsync(Map)} waits for the future
+     * without blocking a thread, while {@link FiltrexExecutor#run(Map)} blocks until it completes.
+     * @param f the function to be called, once when requested for the first time
+     * @return a new Value
+     */
+    public static Value async(Function<List<Value>, CompletableFuture<Value>> f) {
+        return async(f, null);
+    }
+
+    /**
+     * Create an async value whose future only completes after some deferred work is triggered,
+     * such as a {@link BatchLoader} dispatching its queued keys
+     * @param f the function to be called, once when requested for the first time
+     * @param flush triggers the work that will complete the future, or null if the future completes on its own
+     * @return a new Value
+     */
+    static Value async(Function<List<Value>, CompletableFuture<Value>> f, Runnable flush) {
+        var memo = new Value();
+        memo.type = ValueType.ASYNC;
+        memo.asyncFunc = f;
+        memo.flush = flush;
+        return memo;
+    }
+
+    /**
+     * Trigger any deferred work the future of a started async value is waiting for
+     */
+    void flush() {
+        var f = this.flush;
+        if (f != null) {
+            f.run();
+        }
+    }
+
+    /**
+     * Start the lookup of an async value if it has not already been started
+     * @return the future that will hold the value
+     */
+    synchronized CompletableFuture<Value> start() {
+        if (this.type != ValueType.ASYNC) {
+            // Already resolved
+            return CompletableFuture.completedFuture(this);
+        }
+        if (this.future == null) {
+            this.future = this.asyncFunc.apply(Value.EMPTY.array);
+        }
+        return this.future;
+    }
+
     /**
      * Used when this value is called as a function in the filter source,
      * as opposed to automatic resolution when referenced as a value. Note
@@ -149,23 +270,100 @@ public class Value implements Comparable<Value> {
         return this.func.apply(args);
     }
 
+    /**
+     * Resolve function, memoized and async values. Any number of threads may resolve the same
+     * value at once: a memoized function is still only called once, and every thread sees the
+     * complete result.
+     * @return the resolved value, which is this value unless it is a (non-memoized) function
+     */
     Value resolve() {
-        if (this.type == ValueType.MEMOIZED) {
-            var resolved = this.func.apply(Value.EMPTY.array);
-            // TODO is there a nicer way to do a brain transplant?
-            this.type = resolved.type;
-            this.bool = resolved.bool;
-            this.map = resolved.map;
-            this.str = resolved.str;
-            this.array = resolved.array;
-            this.decimal = resolved.decimal;
-            this.func = resolved.func;
-        } else if (this.type == ValueType.FUNCTION) {
+        var current = (ValueType) TYPE.getAcquire(this);
+        if (current == ValueType.MEMOIZED) {
+            resolveMemoized();
+        } else if (current == ValueType.ASYNC) {
+            var pending = start();
+            if (!pending.isDone()) {
+                flush();
+            }
+            settle(pending.join());
+        } else if (current == ValueType.FUNCTION) {
             return this.func.apply(Value.EMPTY.array);
         }
         return this;
     }
 
+    /**
+     * Threads that need the value while the function is running wait for it here. This is a lock
+     * rather than synchronized so that a virtual thread waiting on a slow lookup does not pin its carrier.
+     */
+    private void resolveMemoized() {
+        lock.lock();
+        try {
+            if (this.type == ValueType.MEMOIZED) {
+                become(this.func.apply(Value.EMPTY.array));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Call the function of a memoized value without storing the result in it
+     * @return the result, or this value if something else has already resolved it
+     */
+    Value compute() {
+        var f = this.func;
+        if (f == null || TYPE.getAcquire(this) != ValueType.MEMOIZED) {
+            return resolve();
+        }
+        return f.apply(Value.EMPTY.array);
+    }
+
+    /**
+     * Start a new lookup of an async value without storing the future in it
+     * @return the future that will hold the value
+     */
+    CompletableFuture<Value> startUnshared() {
+        var f = this.asyncFunc;
+        if (f == null || TYPE.getAcquire(this) != ValueType.ASYNC) {
+            return start();
+        }
+        return f.apply(Value.EMPTY.array);
+    }
+
+    /**
+     * @return true if this is a memoized, async or function value
+     */
+    boolean isLazy() {
+        var current = (ValueType) TYPE.getAcquire(this);
+        return current == ValueType.MEMOIZED || current == ValueType.ASYNC || current == ValueType.FUNCTION;
+    }
+
+    private synchronized void settle(Value result) {
+        if (this.type == ValueType.ASYNC) {
+            become(result);
+        }
+    }
+
+    private void become(Value resolved) {
+        // TODO is there a nicer way to do a brain transplant?
+        this.bool = resolved.bool;
+        this.map = resolved.map;
+        this.str = resolved.str;
+        this.array = resolved.array;
+        this.decimal = resolved.decimal;
+        this.isLong = resolved.isLong;
+        this.longValue = resolved.longValue;
+        this.isDouble = resolved.isDouble;
+        this.doubleValue = resolved.doubleValue;
+        this.func = resolved.func;
+        this.asyncFunc = resolved.asyncFunc;
+        this.future = resolved.future;
+        this.flush = resolved.flush;
+        // Written last, so a thread that reads the new type with getAcquire also sees every field above
+        TYPE.setRelease(this, resolved.type);
+    }
+
     /**
      * Return the array or throw if the type is not array after resolving function type values
      * @return the array
@@ -197,10 +395,11 @@ public class Value implements Comparable<Value> {
      * @return the type. note that null strings will be type "null"
      */
     public ValueType getType() {
-        if (this.type == ValueType.STRING && this.str == null) {
+        var current = (ValueType) TYPE.getAcquire(this);
+        if (current == ValueType.STRING && this.str == null) {
             return ValueType.NULL;
         }
-        return type;
+        return current;
     }
 
     /**
@@ -213,6 +412,9 @@ public class Value implements Comparable<Value> {
             case BOOLEAN:
                 return resolved.bool;
             case DECIMAL:
+                if (resolved.isLong || resolved.isDouble) {
+                    return resolved.isLong ? resolved.longValue != 0 : resolved.doubleValue != 0;
+                }
                 return resolved.decimal.compareTo(BigDecimal.ZERO) != 0;
             case NULL:
                 return false;
@@ -241,7 +443,11 @@ public class Value implements Comparable<Value> {
             case STRING:
                 return resolved.str;
             case DECIMAL:
-                return resolved.decimal.stripTrailingZeros().toString();
+                // Multiples of 10 print in scientific notation, like 1E+2
+                if (resolved.isLong && resolved.longValue % 10 != 0) {
+                    return Long.toString(resolved.longValue);
+                }
+                return resolved.decimal().stripTrailingZeros().toString();
             case ARRAY:
                 return resolved.array.stream().map(Value::toString).collect(Collectors.joining(","));
             case MAP:
@@ -279,7 +485,7 @@ public class Value implements Comparable<Value> {
             case STRING:
                 return new BigDecimal(resolved.str);
             case DECIMAL:
-                return resolved.decimal;
+                return resolved.decimal();
             case ARRAY:
                 throw new FiltrexRuntimeException("Invalid conversion of array to decimal");
             case MAP:
@@ -288,6 +494,42 @@ public class Value implements Comparable<Value> {
         return BigDecimal.ZERO;
     }
 
+    private BigDecimal decimal() {
+        var d = decimal;
+        if (d == null) {
+            // Racing threads can only ever store equal values
+            d = isDouble ? BigDecimal.valueOf(doubleValue) : BigDecimal.valueOf(longValue);
+            decimal = d;
+        }
+        return d;
+    }
+
+    /**
+     * @return true if this is a resolved decimal that is held as a long
+     */
+    boolean isLong() {
+        return TYPE.getAcquire(this) == ValueType.DECIMAL && isLong;
+    }
+
+    /**
+     * @return the value of a decimal for which {@link #isLong()} is true
+     */
+    long longValue() {
+        return longValue;
+    }
+
+    /**
+     * Return the value as a double, converting it the way {@link #asDecimal()} does
+     * @return the nearest double to the value
+     */
+    double asDouble() {
+        var resolved = this.resolve();
+        if (resolved.type == ValueType.DECIMAL && (resolved.isLong || resolved.isDouble)) {
+            return resolved.isLong ? resolved.longValue : resolved.doubleValue;
+        }
+        return resolved.asDecimal().doubleValue();
+    }
+
     /**
      * Return true if this value can be converted to a decimal (resolves if necessary)
      * @return true if this value can be converted to a decimal
@@ -335,8 +577,70 @@ public class Value implements Comparable<Value> {
         return Value.FALSE;
     }
 
-    static Value NULL = new Value();
-    static Value EMPTY = new Value(new ArrayList<>());
-    static Value TRUE = new Value(true);
-    static Value FALSE = new Value(false);
+    /**
+     * Normalize a resolved value so that two values have equal keys exactly when they compare equal.
+     * Filtrex equality is not a simple hash equality (numbers compare numerically even when written
+     * as strings, booleans equal both 1 and "true", and so on), so only strings and decimals have keys.
+     * @param value the value
+     * @param typed whether the comparison also requires equal types, as exact "in" does
+     * @return the key, or null if the value cannot be normalized
+     */
+    static String hashKey(Value value, boolean typed) {
+        var type = value.getType();
+        if (type != ValueType.STRING && type != ValueType.DECIMAL) {
+            return null;
+        }
+        String normalized;
+        if (value.canBeDecimal()) {
+            try {
+                // Equal decimals have the same digits and scale once trailing zeros are gone
+                normalized = "n" + value.asDecimal().stripTrailingZeros();
+            } catch (NumberFormatException e) {
+                // Some strings parse as doubles but not decimals, such as "NaN"
+                return null;
+            }
+        } else {
+            normalized = "s" + value;
+        }
+        return typed ? type + normalized : normalized;
+    }
+
+    static final Value NULL = new Value();
+    static final Value EMPTY = new Value(List.of());
+    static final Value TRUE = new Value(true);
+    static final Value FALSE = new Value(false);
+
+    private static final int SMALL_MIN = -128;
+    private static final int SMALL_MAX = 1024;
+
+    /**
+     * Small whole numbers are by far the most common results of arithmetic, counting and length(),
+     * so each has one shared instance. A decimal is never changed once created, so sharing is safe.
+     */
+    private static final Value[] SMALL = new Value[SMALL_MAX - SMALL_MIN + 1];
+
+    static {
+        for (int i = 0; i < SMALL.length; i++) {
+            SMALL[i] = new Value((long) (i + SMALL_MIN));
+        }
+    }
+
+    /**
+     * @param l a whole number
+     * @return a decimal value, shared with other callers if the number is small
+     */
+    static Value of(long l) {
+        return l >= SMALL_MIN && l <= SMALL_MAX ? SMALL[(int) l - SMALL_MIN] : new Value(l);
+    }
+
+    /**
+     * @param d a decimal
+     * @return a decimal value, shared with other callers if the decimal is a small whole number
+     */
+    static Value of(BigDecimal d) {
+        if (d.scale() == 0 && d.precision() <= 4) {
+            return of(d.longValue());
+        }
+        return new Value(d);
+    }
 }
@@ -35,5 +35,9 @@ public enum ValueType {
     /**
      * A function that is evaluated once and then cached
      */
-    MEMOIZED
+    MEMOIZED,
+    /**
+     * A function that starts an asynchronous lookup once, and whose result is then cached
+     */
+    ASYNC
 };
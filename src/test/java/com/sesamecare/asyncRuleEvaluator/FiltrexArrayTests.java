@@ -8,6 +8,7 @@ import org.hamcrest.Matchers;
 import java.math.BigDecimal;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntFunction;
 
 public class FiltrexArrayTests extends BaseFiltrexTest {
     @Test
@@ -61,6 +62,26 @@ public class FiltrexArrayTests extends BaseFiltrexTest {
         assertThat(array.getArray().size(), Matchers.equalTo(3));
     }
 
+    @Test
+    public void testLongLists() {
+        var elements = new StringBuilder("x");
+        for (int i = 1; i < 20_000; i++) {
+            elements.append(", ").append(i);
+        }
+        var context = Map.of("x", new Value(0), "sum", Value.func(args -> new Value(args.size())));
+        var array = runFilter("(" + elements + ")", context).getArray();
+        assertThat(array.size(), Matchers.equalTo(20_000));
+        assertThat(array.get(19_999).asDecimal(), Matchers.comparesEqualTo(BigDecimal.valueOf(19_999)));
+        mathTest(20_000, "sum(" + elements + ")", context);
+        pass("19999 in [" + elements + "]", context);
+
+        // A leading array contributes its elements, but later ones are kept whole
+        var nested = Map.of("a", new Value(List.of(new Value(1), new Value(2))));
+        assertThat(runFilter("(a, 3)", nested).getArray().size(), Matchers.equalTo(3));
+        assertThat(runFilter("[a]", nested).getArray().size(), Matchers.equalTo(2));
+        assertThat(runFilter("(3, a)", nested).getArray().size(), Matchers.equalTo(2));
+    }
+
     @Test
     public void testInclude() {
         fails("1 in foo", Map.of("foo", new Value(List.of())));
@@ -75,4 +96,25 @@ public class FiltrexArrayTests extends BaseFiltrexTest {
         fails("1 not in~ foo", Map.of("foo", new Value(List.of(new Value(6), new Value(1), new Value(3)))));
         pass("1 not in~ foo", Map.of("foo", new Value(List.of(new Value(6), new Value(3)))));
     }
+
+    @Test
+    public void testConstantMembership() {
+        var list = "(1, \"2\", 3.50, \"abc\", \"1.0\")";
+        var array = runFilter(list);
+        IntFunction<Value> target = i -> new Value[]{new Value(1), new Value("1"), new Value(2), new Value("2.00"), new Value(3.5),
+                new Value("abc"), new Value("ABC"), new Value(7), Value.TRUE, Value.NULL,
+                new Value(List.of(new Value(1), new Value("abc"))), new Value(List.of(new Value(1), new Value(7))),
+                Value.memoized(args -> new Value(1)), Value.func(args -> new Value("abc"))}[i];
+        for (var operator : new String[]{"in", "in~", "not in", "not in~"}) {
+            // The constant list is hashed, the one from the input data is scanned
+            var hashed = new FiltrexExecutor("x " + operator + " " + list);
+            var scanned = new FiltrexExecutor("x " + operator + " list");
+            // Each run gets a fresh target, since memoized values change type once resolved
+            for (int i = 0; i < 14; i++) {
+                var expected = scanned.run(Map.of("x", target.apply(i), "list", array)).asBoolean();
+                assertThat(operator + " " + i, hashed.run(Map.of("x", target.apply(i), "list", array)).asBoolean(),
+                        Matchers.equalTo(expected));
+            }
+        }
+    }
 }
@@ -0,0 +1,71 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FiltrexCacheTests extends BaseFiltrexTest {
+    @Test
+    public void testSharedExecutors() {
+        FiltrexExecutor.configureCache(FiltrexExecutor.DEFAULT_CACHE_SIZE, FiltrexExecutor.DEFAULT_CACHE_WEIGHT);
+        var first = FiltrexExecutor.compile("foo > 5");
+        var second = FiltrexExecutor.compile("foo > 5");
+        var other = FiltrexExecutor.compile("foo > 6");
+        var withOptions = FiltrexExecutor.compile("foo > 5", FiltrexOptions.DEFAULT.withCompileThreshold(0));
+        assertSame(first, second);
+        assertNotSame(first, other);
+        assertNotSame(first, withOptions);
+        assertTrue(first.run(Map.of("foo", new Value(6))).asBoolean());
+
+        var stats = FiltrexExecutor.cacheStats();
+        assertEquals(1, stats.hitCount());
+        assertEquals(3, stats.missCount());
+        assertEquals(3, stats.size());
+    }
+
+    @Test
+    public void testEviction() {
+        var cache = new BoundedCache<String, String>(3, 100, String::length);
+        cache.get("a", k -> k);
+        cache.get("b", k -> k);
+        cache.get("c", k -> k);
+        // a is read, so it gets a second chance and b is evicted instead
+        cache.get("a", k -> k);
+        cache.get("d", k -> k);
+        assertEquals(1, cache.stats().evictionCount());
+        assertEquals(3, cache.stats().size());
+        assertEquals("a", cache.get("a", k -> "reloaded"));
+        assertEquals("reloaded", cache.get("b", k -> "reloaded"));
+
+        var weighted = new BoundedCache<String, String>(100, 10, String::length);
+        weighted.get("12345", k -> k);
+        weighted.get("67890", k -> k);
+        weighted.get("x", k -> k);
+        assertEquals(1, weighted.stats().evictionCount());
+        assertEquals(2, weighted.stats().size());
+    }
+
+    @Test
+    public void testRegexCache() {
+        FiltrexExecutor.configureRegexCache(2, 1000);
+        pass("email ~= \"@example[.]com$\"", Map.of("email", new Value("jo@example.com")));
+        // Literal patterns never go through the cache
+        assertEquals(0, FiltrexExecutor.regexCacheStats().missCount());
+
+        var exec = new FiltrexExecutor("email ~= pattern");
+        for (int i = 0; i < 3; i++) {
+            assertTrue(exec.run(Map.of("email", new Value("jo@example.com"), "pattern", new Value("example"))).asBoolean());
+        }
+        assertFalse(exec.run(Map.of("email", new Value("jo@example.com"), "pattern", new Value("^x"))).asBoolean());
+        exec.run(Map.of("email", new Value("jo@example.com"), "pattern", new Value("^y")));
+        var stats = FiltrexExecutor.regexCacheStats();
+        assertEquals(2, stats.hitCount());
+        assertEquals(3, stats.missCount());
+        assertEquals(1, stats.evictionCount());
+        assertEquals(2, stats.size());
+
+        FiltrexExecutor.configureRegexCache(FiltrexExecutor.DEFAULT_REGEX_CACHE_SIZE, FiltrexExecutor.DEFAULT_REGEX_CACHE_WEIGHT);
+    }
+}
@@ -2,8 +2,17 @@ package com.sesamecare.asyncRuleEvaluator;
 
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.*;
 
 public class FiltrexFunctionTests extends BaseFiltrexTest {
     @Test
@@ -30,4 +39,90 @@ public class FiltrexFunctionTests extends BaseFiltrexTest {
         pass("once == 1 and once == 1", fns);
     }
 
+    @Test
+    public void testConcurrentMemoized() throws Exception {
+        var exec = new FiltrexExecutor("profile.score + 1");
+        for (int round = 0; round < 20; round++) {
+            var calls = new AtomicInteger();
+            var start = new CountDownLatch(1);
+            var profile = new Value(Map.of("score", Value.memoized(args -> {
+                calls.incrementAndGet();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return new Value(41);
+            })));
+            // Every thread shares the same context
+            var context = Map.of("profile", profile);
+            var pool = Executors.newFixedThreadPool(8);
+            try {
+                var results = new ArrayList<Future<Value>>();
+                for (int i = 0; i < 8; i++) {
+                    results.add(pool.submit(() -> {
+                        start.await();
+                        return exec.run(context);
+                    }));
+                }
+                start.countDown();
+                for (var result : results) {
+                    assertEquals(42, result.get().asDecimal().intValue());
+                }
+            } finally {
+                pool.shutdown();
+            }
+            assertEquals(1, calls.get());
+        }
+    }
+
+    @Test
+    public void testRegistry() {
+        var calls = new AtomicInteger();
+        var functions = FunctionRegistry.BUILT_IN
+                .withFunction("double", 1, true, args -> {
+                    calls.incrementAndGet();
+                    return new Value(args.get(0).asDecimal().intValue() * 2);
+                })
+                .withFunction("geo.count", 0, FunctionRegistry.UNLIMITED, false, args -> new Value(args.size()));
+        var options = FiltrexOptions.DEFAULT.withFunctions(functions);
+
+        // Pure calls with constant arguments run once, at compile time
+        var exec = new FiltrexExecutor("double(21) == 42 and double(x) == 6 and geo.count(1, 2) == 2", options);
+        assertEquals(1, calls.get());
+        assertTrue(exec.run(Map.of("x", new Value(3))).asBoolean());
+        assertTrue(exec.run(Map.of("x", new Value(3))).asBoolean());
+        assertEquals(3, calls.get());
+
+        // Registered functions win over the input data, unregistered names still come from it
+        var data = Map.of("double", Value.func(args -> new Value(0)), "triple", Value.func(args -> new Value(9)));
+        assertTrue(new FiltrexExecutor("double(2) == 4 and triple(3) == 9", options).run(data).asBoolean());
+
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("double(1, 2)", options));
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("abs()"));
+        assertThrows(IllegalArgumentException.class, () -> functions.withFunction("abs", 1, true, args -> args.get(0)));
+        assertTrue(functions.contains("geo.count"));
+
+        // Registries built from the same functions are equal, and share cached executors
+        Function<List<Value>, Value> half = args -> new Value(args.get(0).asDecimal().intValue() / 2);
+        var first = FunctionRegistry.BUILT_IN.withFunction("half", 1, true, half);
+        var second = FunctionRegistry.BUILT_IN.withFunction("half", 1, true, half);
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, FunctionRegistry.BUILT_IN.withFunction("half", 1, false, half));
+        assertSame(FiltrexExecutor.compile("half(x) > 1", FiltrexOptions.DEFAULT.withFunctions(first)),
+                FiltrexExecutor.compile("half(x) > 1", FiltrexOptions.DEFAULT.withFunctions(second)));
+        assertFalse(FunctionRegistry.BUILT_IN.contains("double"));
+
+        // Rule sets share identical pure calls, and schemas do not need fields for registered functions
+        var rules = new FiltrexRuleSet(Map.of("a", "double(x) > 4", "b", "double(x) < 10"), functions);
+        calls.set(0);
+        var results = rules.run(Map.of("x", new Value(3)));
+        assertTrue(results.get("a").asBoolean() && results.get("b").asBoolean());
+        assertEquals(1, calls.get());
+        var schema = FiltrexSchema.EMPTY.withField("x", ValueType.DECIMAL);
+        var bound = new FiltrexExecutor("double(x)", options.withSchema(schema));
+        assertEquals(8, bound.run(schema.newContext().set("x", new Value(4))).asDecimal().intValue());
+    }
+
 }
@@ -0,0 +1,105 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FiltrexGeneratedClassTests extends BaseFiltrexTest {
+    static final FiltrexOptions GENERATE = FiltrexOptions.DEFAULT.withCompileThreshold(0);
+
+    static final List<String> PROGRAMS = List.of(
+            "1 + 2 * 3",
+            "((1 + 2) * 3 / 2 + 1 - 4 + (2 ^ 3)) * -2",
+            "97 % 10",
+            "foo > 4 and bar == \"x\"",
+            "foo < 4 or bar != \"x\"",
+            "not foo",
+            "foo >= 5 ? bar : 9.4",
+            "foo <= 5 ? bar : 9.4",
+            "bar ~= \"^[xX]\"",
+            "foo in (1, 2, 5)",
+            "foo not in~ (\"1\", 2)",
+            "[1, 2] in (2, 3, 1)",
+            "length(list) + max(foo, 2, 3)",
+            "thing.echo(foo) == 5",
+            "missing.value or 0"
+    );
+
+    @Test
+    public void testMatchesInterpreter() {
+        var thing = new Value(Map.of("echo", Value.func(args -> args.get(0))));
+        var list = new Value(List.of(new Value(1), new Value(2)));
+        var contexts = List.of(
+                Map.of("foo", new Value(5), "bar", new Value("x"), "list", list, "thing", thing),
+                Map.of("foo", new Value(1), "bar", new Value("y"), "list", list, "thing", thing),
+                Map.of("foo", new Value(BigDecimal.valueOf(4.5)), "bar", new Value("X"), "list", list, "thing", thing)
+        );
+        for (var program : PROGRAMS) {
+            var interpreted = new FiltrexExecutor(program);
+            var generated = new FiltrexExecutor(program, GENERATE);
+            assertTrue(generated.root.getClass().isHidden(), program);
+            for (var context : contexts) {
+                assertEquals(interpreted.run(context).toString(), generated.run(context).toString(), program);
+            }
+        }
+    }
+
+    @Test
+    public void testEvaluationOrder() {
+        var calls = new ArrayList<String>();
+        var context = Map.of(
+                "a", Value.func(args -> { calls.add("a"); return new Value(1); }),
+                "b", Value.func(args -> { calls.add("b"); return new Value(2); }),
+                "c", Value.func(args -> { calls.add("c"); return new Value(3); })
+        );
+        var generated = new FiltrexExecutor("a + b * c", GENERATE);
+        assertEquals(7, generated.run(context).asDecimal().intValue());
+        assertEquals(List.of("a", "b", "c"), calls);
+
+        // "and" and "or" skip their right side once the left decides the result
+        calls.clear();
+        assertFalse(new FiltrexExecutor("a > 1 and b", GENERATE).run(context).asBoolean());
+        assertTrue(new FiltrexExecutor("a or c", GENERATE).run(context).asBoolean());
+        assertEquals(List.of("a", "a"), calls);
+    }
+
+    @Test
+    public void testPromotion() {
+        var exec = new FiltrexExecutor("foo > 4", FiltrexOptions.DEFAULT.withCompileThreshold(3));
+        var context = Map.of("foo", new Value(5));
+        assertTrue(exec.run(context).asBoolean());
+        assertTrue(exec.run(context).asBoolean());
+        assertFalse(exec.root.getClass().isHidden());
+        assertTrue(exec.run(context).asBoolean());
+        assertTrue(exec.root.getClass().isHidden());
+        assertFalse(exec.run(Map.of("foo", new Value(3))).asBoolean());
+
+        var never = new FiltrexExecutor("foo > 4");
+        for (int i = 0; i < 10; i++) {
+            never.run(context);
+        }
+        assertFalse(never.root.getClass().isHidden());
+    }
+
+    @Test
+    public void testFailedGeneration() {
+        // The interpreter never reaches the right side of the "or", but lowering it overflows the stack
+        FiltrexNode deep = new FiltrexNode.Literal(Value.TRUE);
+        for (int i = 0; i < 1_000_000; i++) {
+            deep = new FiltrexNode.Not(deep);
+        }
+        var exec = new FiltrexExecutor("foo > 4", FiltrexOptions.DEFAULT.withCompileThreshold(2));
+        var interpreted = new FiltrexNode.Or(new FiltrexNode.Literal(Value.TRUE), deep);
+        exec.root = interpreted;
+        var context = Map.of("foo", new Value(5));
+        assertTrue(exec.run(context).asBoolean());
+        assertTrue(exec.run(context).asBoolean());
+        assertSame(interpreted, exec.root);
+        assertTrue(exec.run(context).asBoolean());
+    }
+}
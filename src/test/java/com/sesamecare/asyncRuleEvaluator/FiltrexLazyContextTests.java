@@ -6,10 +6,24 @@ import org.hamcrest.Matchers;
 
 import org.junit.jupiter.api.Test;
 
+import java.math.BigDecimal;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class FiltrexLazyContextTests extends BaseFiltrexTest {
     class User {
@@ -61,4 +75,352 @@ public class FiltrexLazyContextTests extends BaseFiltrexTest {
         pass("user.callCount == 3", context);
         pass("user.httpBin.callCount == 3", context);
     }
+
+    @Test
+    public void testAsyncValues() {
+        var lookups = new AtomicInteger();
+        var pending = new CompletableFuture<Value>();
+        var context = Map.of(
+                "user", Value.async(args -> {
+                    lookups.incrementAndGet();
+                    return pending;
+                }),
+                "ready", Value.async(args -> CompletableFuture.completedFuture(new Value(7)))
+        );
+        var exec = new FiltrexExecutor("ready == 7 and user.plan == \"gold\"");
+        var result = exec.runAsync(context);
+        assertThat(result.isDone(), Matchers.equalTo(false));
+
+        pending.complete(new Value(Map.of("plan", new Value("gold"))));
+        assertThat(result.join().asBoolean(), Matchers.equalTo(true));
+        assertThat(lookups.get(), Matchers.equalTo(1));
+
+        // Now resolved, so blocking runs see the same value
+        pass("user.plan == \"gold\"", context);
+        assertThat(lookups.get(), Matchers.equalTo(1));
+    }
+
+    @Test
+    public void testAsyncFailure() {
+        var pending = new CompletableFuture<Value>();
+        var exec = new FiltrexExecutor("user.plan == \"gold\"");
+        var result = exec.runAsync(Map.of("user", Value.async(args -> pending)));
+        pending.completeExceptionally(new IllegalStateException("lookup failed"));
+        assertThat(result.isCompletedExceptionally(), Matchers.equalTo(true));
+    }
+
+    @Test
+    public void testBlockingAsync() {
+        var context = Map.of("user", Value.async(args -> CompletableFuture.supplyAsync(() -> new Value(Map.of("id", new Value(3))))));
+        pass("user.id == 3", context);
+    }
+
+    @Test
+    public void testPrefetch() {
+        // Both lookups wait for each other, so they can only finish if they run concurrently
+        var barrier = new CyclicBarrier(2);
+        var lookups = new AtomicInteger();
+        Function<Value, Value> lookup = result -> {
+            try {
+                lookups.incrementAndGet();
+                barrier.await(5, TimeUnit.SECONDS);
+                return result;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        var context = Map.of(
+                "user", Value.memoized(args -> lookup.apply(new Value(Map.of(
+                        "plan", new Value("gold"),
+                        "settings", Value.memoized(a -> new Value(Map.of("beta", new Value(1))))
+                )))),
+                "account", Value.memoized(args -> lookup.apply(new Value(Map.of("balance", new Value(150))))),
+                "unused", Value.memoized(args -> { throw new IllegalStateException("not referenced"); })
+        );
+        var exec = new FiltrexExecutor("user.plan == \"gold\" and account.balance > 100 and user.settings.beta");
+        exec.prefetch(context, Executors.newFixedThreadPool(2)).join();
+        assertThat(lookups.get(), Matchers.equalTo(2));
+        assertThat(context.get("user").getType(), Matchers.equalTo(ValueType.MAP));
+        assertThat(context.get("user").getMap().get("settings").getType(), Matchers.equalTo(ValueType.MAP));
+        assertThat(context.get("unused").getType(), Matchers.equalTo(ValueType.MEMOIZED));
+        assertThat(exec.run(context).asBoolean(), Matchers.equalTo(true));
+        assertThat(lookups.get(), Matchers.equalTo(2));
+    }
+
+    @Test
+    public void testRunPrefetched() {
+        var barrier = new CyclicBarrier(2);
+        Function<Integer, Value> lookup = result -> {
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+                return new Value(result);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        };
+        var context = Map.of(
+                "a", Value.memoized(args -> lookup.apply(1)),
+                "b", Value.memoized(args -> lookup.apply(2))
+        );
+        assertThat(new FiltrexExecutor("a + b").runPrefetched(context).asDecimal().intValue(), Matchers.equalTo(3));
+
+        // Failed async lookups are left for the run to report, whether they throw or return no future
+        var failing = Map.of(
+                "a", new Value(1),
+                "thrown", Value.async(args -> { throw new IllegalStateException("lookup failed"); }),
+                "missing", Value.async(args -> null));
+        var exec = new FiltrexExecutor("a or thrown or missing");
+        exec.prefetch(failing, Executors.newFixedThreadPool(2)).join();
+        assertThat(exec.runPrefetched(failing).asBoolean(), Matchers.equalTo(true));
+        var error = assertThrows(IllegalStateException.class, () -> new FiltrexExecutor("thrown").runPrefetched(failing));
+        assertThat(error.getMessage(), Matchers.equalTo("lookup failed"));
+    }
+
+    @Test
+    public void testBatchLoader() {
+        var accountCalls = new ArrayList<List<Integer>>();
+        var accounts = new BatchLoader<Integer>(ids -> {
+            accountCalls.add(ids);
+            var result = new HashMap<Integer, Value>();
+            ids.forEach(id -> result.put(id, new Value(Map.of("balance", new Value(id * 10)))));
+            return CompletableFuture.completedFuture(result);
+        });
+        var userCalls = new ArrayList<List<Integer>>();
+        var users = new BatchLoader<Integer>(ids -> {
+            userCalls.add(ids);
+            var result = new HashMap<Integer, Value>();
+            // Every user shares one of 5 accounts, and user 0 does not exist
+            ids.stream().filter(id -> id > 0).forEach(id -> result.put(id, new Value(Map.of(
+                    "id", new Value(id),
+                    "account", accounts.load(id % 5)
+            ))));
+            return CompletableFuture.supplyAsync(() -> result);
+        });
+
+        var contexts = new ArrayList<Map<String, Value>>();
+        for (int i = 0; i < 50; i++) {
+            contexts.add(Map.of("user", users.load(i)));
+        }
+        var exec = new FiltrexExecutor("user.account.balance >= 20");
+        var results = exec.runBatch(contexts);
+        assertThat(userCalls.size(), Matchers.equalTo(1));
+        assertThat(userCalls.get(0).size(), Matchers.equalTo(50));
+        assertThat(accountCalls.size(), Matchers.equalTo(1));
+        assertThat(accountCalls.get(0).size(), Matchers.equalTo(5));
+        for (int i = 0; i < 50; i++) {
+            assertThat(results.get(i).asBoolean(), Matchers.equalTo(i > 0 && i % 5 >= 2));
+        }
+
+        // Other kinds of runs dispatch on their own
+        pass("user.id == 51", Map.of("user", users.load(51)));
+        assertThat(exec.runAsync(Map.of("user", users.load(52))).join().asBoolean(), Matchers.equalTo(true));
+        assertThat(userCalls.size(), Matchers.equalTo(3));
+    }
+
+    @Test
+    public void testBatchLoaderFailures() {
+        var exec = new FiltrexExecutor("user.id == 1");
+        var noMap = new BatchLoader<Integer>(ids -> CompletableFuture.completedFuture(null));
+        var noFuture = new BatchLoader<Integer>(ids -> null);
+        var throwing = new BatchLoader<Integer>(ids -> {
+            throw new IllegalStateException("down");
+        });
+        for (var loader : List.of(noMap, noFuture, throwing)) {
+            var batch = exec.runBatchAsync(List.of(Map.of("user", loader.load(1)), Map.of("user", loader.load(2))));
+            assertThat(batch.isCompletedExceptionally(), Matchers.equalTo(true));
+            assertThat(exec.runAsync(Map.of("user", loader.load(3))).isCompletedExceptionally(), Matchers.equalTo(true));
+        }
+    }
+
+    @Test
+    public void testScope() {
+        var configLoads = new AtomicInteger();
+        var scoreCalls = new AtomicInteger();
+        var accountLookups = new AtomicInteger();
+        var shared = Map.of(
+                "config", Value.memoized(args -> {
+                    configLoads.incrementAndGet();
+                    return new Value(Map.of("limit", new Value(10)));
+                }),
+                "score", Value.func(args -> {
+                    scoreCalls.incrementAndGet();
+                    return new Value(args.isEmpty() ? 5 : args.get(0).asDecimal().intValue() * 2);
+                }),
+                "account", Value.async(args -> {
+                    accountLookups.incrementAndGet();
+                    return CompletableFuture.supplyAsync(() -> new Value(Map.of("balance", new Value(20))));
+                })
+        );
+        var exec = new FiltrexExecutor("score < config.limit and score(3) + score(3) < account.balance and score(4) == 8");
+        var scope = new FiltrexScope();
+        assertThat(exec.run(shared, scope).asBoolean(), Matchers.equalTo(true));
+        assertThat(exec.runAsync(shared, scope).join().asBoolean(), Matchers.equalTo(true));
+        assertThat(configLoads.get(), Matchers.equalTo(1));
+        assertThat(scoreCalls.get(), Matchers.equalTo(3));
+        assertThat(accountLookups.get(), Matchers.equalTo(1));
+        assertThat(scope.size(), Matchers.equalTo(5));
+
+        // The shared context is untouched, so a new scope looks everything up again
+        assertThat(shared.get("config").getType(), Matchers.equalTo(ValueType.MEMOIZED));
+        assertThat(shared.get("account").getType(), Matchers.equalTo(ValueType.ASYNC));
+        var rules = new FiltrexRuleSet(Map.of("low", "config.limit < 5", "rich", "account.balance > 10"));
+        var results = rules.run(shared, new FiltrexScope());
+        assertThat(results.get("low").asBoolean(), Matchers.equalTo(false));
+        assertThat(results.get("rich").asBoolean(), Matchers.equalTo(true));
+        assertThat(configLoads.get(), Matchers.equalTo(2));
+        assertThat(accountLookups.get(), Matchers.equalTo(2));
+
+        // One scope for a batch resolves values shared between its contexts once
+        var batch = exec.runBatch(List.of(shared, shared, shared), new FiltrexScope());
+        assertThat(batch.stream().allMatch(Value::asBoolean), Matchers.equalTo(true));
+        assertThat(configLoads.get(), Matchers.equalTo(3));
+        assertThat(accountLookups.get(), Matchers.equalTo(3));
+        assertThat(shared.get("config").getType(), Matchers.equalTo(ValueType.MEMOIZED));
+
+        // Calls are only shared when the function could not tell the arguments apart
+        var echoes = new AtomicInteger();
+        var echo = Value.func(args -> {
+            echoes.incrementAndGet();
+            return new Value(args.get(0).getType() + ":" + args.get(0).asDecimal());
+        });
+        var echoX = new FiltrexExecutor("echo(x)");
+        var exact = new FiltrexScope();
+        assertThat(echoX.run(Map.of("echo", echo, "x", new Value("1")), exact).toString(), Matchers.equalTo("STRING:1"));
+        assertThat(echoX.run(Map.of("echo", echo, "x", new Value("1.0")), exact).toString(), Matchers.equalTo("STRING:1.0"));
+        assertThat(echoX.run(Map.of("echo", echo, "x", new Value(1)), exact).toString(), Matchers.equalTo("DECIMAL:1"));
+        assertThat(echoX.run(Map.of("echo", echo, "x", new Value(new BigDecimal("1.00"))), exact).toString(), Matchers.equalTo("DECIMAL:1.00"));
+        assertThat(echoX.run(Map.of("echo", echo, "x", new Value("1")), exact).toString(), Matchers.equalTo("STRING:1"));
+        assertThat(echoes.get(), Matchers.equalTo(4));
+    }
+
+    @Test
+    public void testShortCircuit() {
+        var lookups = new AtomicInteger();
+        var context = Map.of(
+                "flag", new Value(0),
+                "user", Value.memoized(args -> {
+                    lookups.incrementAndGet();
+                    return new Value(Map.of("score", new Value(9)));
+                })
+        );
+        fails("flag and user.score > 5", context);
+        assertThat(lookups.get(), Matchers.equalTo(0));
+
+        // Without a schema any symbol may be a function with side effects, so nothing moves
+        var exec = new FiltrexExecutor("user.score > 5 and flag", FiltrexOptions.DEFAULT.withClauseReordering(true));
+        assertThat(((FiltrexNode.And) exec.root).rhs, Matchers.instanceOf(FiltrexNode.Symbol.class));
+        assertThat(exec.run(context).asBoolean(), Matchers.equalTo(false));
+        assertThat(lookups.get(), Matchers.equalTo(1));
+
+        // A schema tells which symbols are lazy, and reordering puts the cheap term first even when it is written last
+        var schema = FiltrexSchema.EMPTY
+                .withField("flag", ValueType.DECIMAL)
+                .withField("user.score", ValueType.MEMOIZED)
+                .withField("a.b.c", ValueType.DECIMAL);
+        var reordering = FiltrexOptions.DEFAULT.withClauseReordering(true).withSchema(schema);
+        var scored = new AtomicInteger();
+        Supplier<FiltrexContext> contexts = () -> schema.newContext()
+                .set("flag", new Value(0))
+                .set("a.b.c", new Value(1))
+                .set("user.score", Value.memoized(args -> new Value(scored.incrementAndGet() + 8)));
+        exec = new FiltrexExecutor("user.score > 5 and flag", reordering);
+        assertThat(exec.run(contexts.get()).asBoolean(), Matchers.equalTo(false));
+        exec = new FiltrexExecutor("user.score > 5 or not flag or user.score < 2", reordering);
+        assertThat(exec.run(contexts.get()).asBoolean(), Matchers.equalTo(true));
+        exec = new FiltrexExecutor("user.score > 5 and a.b.c > 5", reordering);
+        assertThat(exec.run(contexts.get()).asBoolean(), Matchers.equalTo(false));
+        assertThat(scored.get(), Matchers.equalTo(0));
+
+        // Functions that are not pure stay where they are, and keep the terms around them on their side
+        var calls = new ArrayList<String>();
+        var functions = FunctionRegistry.BUILT_IN.withFunction("log", 1, false, args -> {
+            calls.add(args.get(0).toString());
+            return Value.TRUE;
+        });
+        exec = new FiltrexExecutor("user.score > 5 and log(\"a\") and flag", reordering.withFunctions(functions));
+        assertThat(exec.run(contexts.get()).asBoolean(), Matchers.equalTo(false));
+        assertThat(calls, Matchers.contains("a"));
+        assertThat(scored.get(), Matchers.equalTo(1));
+
+        // So do fields declared as functions, which may have side effects every time they are read
+        var counted = schema.withField("count", ValueType.FUNCTION);
+        var counts = new AtomicInteger();
+        exec = new FiltrexExecutor("count > 0 and flag", reordering.withSchema(counted));
+        assertThat(exec.run(counted.newContext()
+                .set("flag", new Value(0))
+                .set("count", Value.func(args -> new Value(counts.incrementAndGet())))).asBoolean(), Matchers.equalTo(false));
+        assertThat(counts.get(), Matchers.equalTo(1));
+    }
+
+    @Test
+    public void testAdaptiveReordering() {
+        var calls = new AtomicInteger();
+        var schema = FiltrexSchema.EMPTY.withField("score", ValueType.DECIMAL).withField("flag", ValueType.BOOLEAN);
+        var flag = new AtomicBoolean();
+        var score = new AtomicReference<Value>();
+        Supplier<FiltrexContext> contexts = () -> schema.newContext()
+                .set("flag", flag.get() ? Value.TRUE : Value.FALSE)
+                .set("score", score.get() != null ? score.get() : Value.memoized(args -> {
+                    calls.incrementAndGet();
+                    return new Value(9);
+                }));
+        var exec = new FiltrexExecutor("score > 5 and flag and score < 20",
+                FiltrexOptions.DEFAULT.withSchema(schema).withAdaptiveReordering(10));
+        var chain = (FiltrexNode.Adaptive) exec.root;
+        assertThat(chain.order(), Matchers.equalTo(new int[]{0, 1, 2}));
+
+        // The flag always decides the result, so it moves first and the lookups stop
+        for (int i = 0; i < 5000; i++) {
+            assertThat(exec.run(contexts.get()).asBoolean(), Matchers.equalTo(false));
+        }
+        assertThat(chain.order()[0], Matchers.equalTo(1));
+        calls.set(0);
+        for (int i = 0; i < 100; i++) {
+            exec.run(contexts.get());
+        }
+        assertThat(calls.get(), Matchers.equalTo(0));
+
+        // When the flag stops deciding anything, the score terms are tried first again, sparing the flag lookup
+        flag.set(true);
+        score.set(new Value(50));
+        for (int i = 0; i < 5000; i++) {
+            assertThat(exec.run(contexts.get()).asBoolean(), Matchers.equalTo(false));
+        }
+        assertThat(chain.order()[0], Matchers.equalTo(2));
+
+        // Terms that call functions that are not pure split the chain
+        var functions = FunctionRegistry.BUILT_IN.withFunction("log", 1, false, args -> Value.TRUE);
+        var flags = FiltrexSchema.EMPTY
+                .withField("a", ValueType.BOOLEAN)
+                .withField("b", ValueType.BOOLEAN)
+                .withField("c", ValueType.BOOLEAN);
+        exec = new FiltrexExecutor("a or b or log(1) or c",
+                FiltrexOptions.DEFAULT.withSchema(flags).withAdaptiveReordering(10).withFunctions(functions));
+        var or = (FiltrexNode.Or) exec.root;
+        assertThat(or.rhs, Matchers.instanceOf(FiltrexNode.Symbol.class));
+        assertThat(((FiltrexNode.Or) or.lhs).lhs, Matchers.instanceOf(FiltrexNode.Adaptive.class));
+        assertThat(exec.run(flags.newContext().set("c", Value.TRUE)).asBoolean(), Matchers.equalTo(true));
+
+        // Functions in the input data may have side effects, so they keep their position and split the chain
+        var audited = new ArrayList<String>();
+        var data = Map.of(
+                "a", Value.FALSE,
+                "audit", Value.func(args -> {
+                    audited.add("audit");
+                    return Value.FALSE;
+                }),
+                "b", Value.TRUE);
+        exec = new FiltrexExecutor("a or audit or b", FiltrexOptions.DEFAULT.withAdaptiveReordering(1));
+        assertThat(exec.root, Matchers.not(Matchers.instanceOf(FiltrexNode.Adaptive.class)));
+        for (int i = 0; i < 1000; i++) {
+            assertThat(exec.run(data).asBoolean(), Matchers.equalTo(true));
+        }
+        assertThat(audited.size(), Matchers.equalTo(1000));
+        var declared = flags.withField("audit", ValueType.FUNCTION);
+        exec = new FiltrexExecutor("a or audit or b or c", FiltrexOptions.DEFAULT.withSchema(declared).withAdaptiveReordering(1));
+        or = (FiltrexNode.Or) exec.root;
+        assertThat(or.rhs, Matchers.instanceOf(FiltrexNode.Adaptive.class));
+        assertThat(((FiltrexNode.Or) or.lhs).rhs, Matchers.instanceOf(FiltrexNode.Symbol.class));
+        assertThat(((FiltrexNode.Symbol) ((FiltrexNode.Or) or.lhs).rhs).path, Matchers.arrayContaining("audit"));
+    }
 }
@@ -0,0 +1,150 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FiltrexRuleSetTests extends BaseFiltrexTest {
+    static Map<String, String> rules() {
+        var rules = new LinkedHashMap<String, String>();
+        rules.put("adult", "user.age >= 18");
+        rules.put("adultInState", "user.age >= 18 and state in (\"CA\", \"NY\")");
+        rules.put("inState", "state in (\"CA\", \"NY\")");
+        rules.put("score", "score(user.age) > 20 or score(user.age) < 5");
+        rules.put("lucky", "random() < 2 and random() < 2");
+        return rules;
+    }
+
+    @Test
+    public void testMatchesExecutors() {
+        var ruleSet = new FiltrexRuleSet(rules());
+        // user.age >= 18 and the "in" (whose array is only reached through the shared "in")
+        assertEquals(2, ruleSet.getSharedCount());
+
+        var scoreCalls = new AtomicInteger();
+        for (var age : new int[]{12, 30}) {
+            for (var state : new String[]{"CA", "TX"}) {
+                var context = Map.of(
+                        "user", new Value(Map.of("age", new Value(age))),
+                        "state", new Value(state),
+                        "score", Value.func(args -> {
+                            scoreCalls.incrementAndGet();
+                            return args.get(0);
+                        })
+                );
+                var results = ruleSet.run(context);
+                assertEquals(rules().keySet(), results.keySet());
+                for (var rule : rules().entrySet()) {
+                    assertEquals(new FiltrexExecutor(rule.getValue()).run(context).toString(), results.get(rule.getKey()).toString(), rule.getKey());
+                }
+            }
+        }
+        // Application functions are never shared, so score is called for each reference
+        assertTrue(scoreCalls.get() > 4);
+    }
+
+    @Test
+    public void testSharedEvaluatedOnce() {
+        var lookups = new AtomicInteger();
+        var context = Map.of("user", new Value(Map.of("age", Value.func(args -> {
+            lookups.incrementAndGet();
+            return new Value(30);
+        }))));
+        var rules = new LinkedHashMap<String, String>();
+        rules.put("a", "user.age >= 18");
+        rules.put("b", "user.age >= 18 and 1");
+        rules.put("c", "not (user.age >= 18)");
+        var results = new FiltrexRuleSet(rules).run(context);
+        assertTrue(results.get("a").asBoolean());
+        assertTrue(results.get("b").asBoolean());
+        assertFalse(results.get("c").asBoolean());
+        assertEquals(1, lookups.get());
+    }
+
+    @Test
+    public void testAsync() {
+        var pending = new CompletableFuture<Value>();
+        var rules = new LinkedHashMap<String, String>();
+        rules.put("first", "1 + 1");
+        rules.put("second", "user.plan == \"gold\"");
+        var result = new FiltrexRuleSet(rules).runAsync(Map.of("user", Value.async(args -> pending)));
+        assertFalse(result.isDone());
+        pending.complete(new Value(Map.of("plan", new Value("gold"))));
+        assertEquals(2, result.join().get("first").asDecimal().intValue());
+        assertTrue(result.join().get("second").asBoolean());
+    }
+
+    @Test
+    public void testPredicateIndex() {
+        var rules = new LinkedHashMap<String, String>();
+        rules.put("gold", "plan == \"gold\" and user.age >= 18");
+        rules.put("one", "1.0 == plan");
+        rules.put("exact", "plan in (\"1\", \"silver\")");
+        rules.put("inexact", "plan in~ (1, \"silver\")");
+        rules.put("other", "plan != \"gold\"");
+        var ruleSet = new FiltrexRuleSet(rules);
+        assertEquals(4, ruleSet.getIndexedCount());
+
+        var ageLookups = new AtomicInteger();
+        var ruleSetLookups = 0;
+        var plans = new Value[]{new Value("gold"), new Value("silver"), new Value(1), new Value("1.00"),
+                Value.TRUE, Value.NULL, new Value(List.of(new Value("gold")))};
+        for (var plan : plans) {
+            var context = Map.of(
+                    "plan", plan,
+                    "user", new Value(Map.of("age", Value.func(args -> {
+                        ageLookups.incrementAndGet();
+                        return new Value(30);
+                    })))
+            );
+            var before = ageLookups.get();
+            var results = ruleSet.run(context);
+            ruleSetLookups += ageLookups.get() - before;
+            for (var rule : rules.entrySet()) {
+                assertEquals(new FiltrexExecutor(rule.getValue()).run(context).asBoolean(), results.get(rule.getKey()).asBoolean(), rule.getKey() + " for " + plan);
+            }
+        }
+        // Only the string "gold" and the values that cannot be indexed (true, null and the array) reach the "gold" rule,
+        // and "and" skips the age of the ones that are not equal to "gold"
+        assertEquals(2, ruleSetLookups);
+    }
+
+    @Test
+    public void testLazyIndexedSymbol() {
+        var calls = new AtomicInteger();
+        var rules = new LinkedHashMap<String, String>();
+        rules.put("guarded", "cheap == 1 and lazy == \"x\"");
+        rules.put("first", "plan in (\"a\", \"b\") and cheap == 1");
+        var ruleSet = new FiltrexRuleSet(rules);
+        assertEquals(2, ruleSet.getIndexedCount());
+
+        // The lazy symbol is never looked up just to consult the index
+        var context = Map.of(
+                "cheap", new Value(0),
+                "lazy", Value.func(args -> {
+                    calls.incrementAndGet();
+                    throw new IllegalStateException("backend down");
+                }),
+                "plan", Value.func(args -> {
+                    calls.incrementAndGet();
+                    return new Value("c");
+                })
+        );
+        var results = ruleSet.run(context);
+        assertFalse(results.get("guarded").asBoolean());
+        assertFalse(results.get("first").asBoolean());
+        // Only the "first" rule looks up its plan, once
+        assertEquals(1, calls.get());
+
+        // Resolved values are still indexed
+        var memoized = Value.memoized(args -> new Value("c"));
+        memoized.resolve();
+        assertFalse(ruleSet.run(Map.of("cheap", new Value(1), "plan", memoized, "lazy", new Value("x"))).get("first").asBoolean());
+    }
+}
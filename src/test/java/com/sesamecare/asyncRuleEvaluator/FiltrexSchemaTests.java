@@ -0,0 +1,70 @@
+package com.sesamecare.asyncRuleEvaluator;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FiltrexSchemaTests extends BaseFiltrexTest {
+    static final FiltrexSchema SCHEMA = FiltrexSchema.EMPTY
+            .withField("state", ValueType.STRING)
+            .withField("user.age", ValueType.DECIMAL)
+            .withField("user.score", ValueType.FUNCTION);
+
+    @Test
+    public void testSlots() {
+        var exec = new FiltrexExecutor("user.age >= 18 and state in (\"CA\", \"NY\") and user.score(2) > 5",
+                FiltrexOptions.DEFAULT.withSchema(SCHEMA));
+        int age = SCHEMA.slot("user.age");
+        var context = SCHEMA.newContext()
+                .set("state", new Value("CA"))
+                .set(age, new Value(30))
+                .set("user.score", Value.func(args -> new Value(args.get(0).asDecimal().intValue() * 5)));
+        assertTrue(exec.run(context).asBoolean());
+        assertFalse(exec.run(context.set(age, new Value(12))).asBoolean());
+        assertNull(context.clear().get(age));
+
+        // The same executor still accepts maps
+        var map = Map.of(
+                "state", new Value("NY"),
+                "user", new Value(Map.of("age", new Value(40), "score", Value.func(args -> new Value(10))))
+        );
+        assertTrue(exec.run(map).asBoolean());
+    }
+
+    @Test
+    public void testAsyncSlot() {
+        var exec = new FiltrexExecutor("user.age + 1", FiltrexOptions.DEFAULT.withSchema(SCHEMA));
+        var pending = new CompletableFuture<Value>();
+        var result = exec.runAsync(SCHEMA.newContext().set("user.age", Value.async(args -> pending)));
+        assertFalse(result.isDone());
+        pending.complete(new Value(41));
+        assertEquals(42, result.join().asDecimal().intValue());
+    }
+
+    @Test
+    public void testValidation() {
+        var options = FiltrexOptions.DEFAULT.withSchema(SCHEMA);
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("user.name == \"x\"", options));
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("other(1)", options));
+        // A quoted symbol is a single key, so it is not the dotted field
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("'user.age' > 1", options));
+        var quoted = FiltrexSchema.EMPTY.withField("first name", ValueType.STRING);
+        assertTrue(new FiltrexExecutor("'first name' == \"Ann\"", FiltrexOptions.DEFAULT.withSchema(quoted))
+                .run(quoted.newContext().set("first name", new Value("Ann"))).asBoolean());
+        assertEquals(3, new FiltrexExecutor("abs(-3)", options).run(SCHEMA.newContext()).asDecimal().intValue());
+
+        assertThrows(IllegalArgumentException.class, () -> SCHEMA.newContext().set("state", new Value(1)));
+        assertThrows(IllegalArgumentException.class, () -> SCHEMA.newContext().set("user", new Value(1)));
+        assertThrows(IllegalArgumentException.class, () -> SCHEMA.withField("user", ValueType.MAP));
+        assertThrows(IllegalArgumentException.class, () -> SCHEMA.withField("state.code", ValueType.STRING));
+
+        var other = FiltrexSchema.EMPTY.withField("state", ValueType.STRING);
+        var exec = new FiltrexExecutor("state", options);
+        assertThrows(IllegalArgumentException.class, () -> exec.run(other.newContext()));
+        assertEquals(SCHEMA, FiltrexSchema.EMPTY.withField("state", ValueType.STRING)
+                .withField("user.age", ValueType.DECIMAL).withField("user.score", ValueType.FUNCTION));
+    }
+}
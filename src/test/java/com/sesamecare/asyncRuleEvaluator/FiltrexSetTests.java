@@ -2,6 +2,14 @@ package com.sesamecare.asyncRuleEvaluator;
 
 import org.junit.jupiter.api.Test;
 
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class FiltrexSetTests extends BaseFiltrexTest {
     @Test
     public void testUnion() {
@@ -16,4 +24,50 @@ public class FiltrexSetTests extends BaseFiltrexTest {
         pass("[1, 2] in difference([1, 2, 3, 4], [4, 3])");
         pass("[3, 4] not in difference([1, 2, 3, 4], [4, 3])");
     }
+
+    @Test
+    public void testUnique() {
+        pass("length(unique([1, 2, 1, \"1\", 2.0, \"1.0\"])) == 3");
+        pass("unique([3, 1], [1, 2, 3]) == [3, 1, 2]");
+        pass("length(unique(1)) == 1");
+    }
+
+    @Test
+    public void testLargeSets() {
+        var ids = new ArrayList<Value>();
+        var others = new ArrayList<Value>();
+        for (int i = 0; i < 5000; i++) {
+            ids.add(new Value("id" + i));
+            others.add(new Value("id" + (i + 2500)));
+        }
+        var context = Map.of("ids", new Value(ids), "others", new Value(others));
+        mathTest(2500, "length(intersection(ids, others))", context);
+        mathTest(7500, "length(union(ids, others))", context);
+        mathTest(2500, "length(difference(ids, others))", context);
+        // Exact matching, so the string "1" is not the number 1
+        pass("length(intersection([1, \"2\", 3.0], [\"1\", 2, 3])) == 1");
+    }
+
+    @Test
+    public void testValueEquality() {
+        // Values keep Object identity, so they stay stable as map keys even when lazy values resolve
+        assertNotEquals(new Value("1.0"), new Value("1"));
+        var memoized = Value.memoized(args -> new Value(1));
+        var set = new HashSet<Value>(List.of(memoized));
+        memoized.resolve();
+        assertTrue(set.contains(memoized));
+
+        // unique compares like an exact "in", and arrays and maps by content
+        var arrays = new Value(List.of(
+                new Value(List.of(new Value(1), new Value("a"))),
+                new Value(List.of(new Value(new BigDecimal("1.0")), new Value("a"))),
+                new Value(List.of(new Value(1), new Value("b"))),
+                new Value(List.of(new Value("1"), new Value("a")))));
+        mathTest(3, "length(unique(arrays))", Map.of("arrays", arrays));
+        var maps = new Value(List.of(
+                new Value(Map.of("a", new Value(1), "b", new Value("x"))),
+                new Value(Map.of("b", new Value("x"), "a", new Value(new BigDecimal("1.00")))),
+                new Value(Map.of("a", new Value("1"), "b", new Value("x")))));
+        mathTest(2, "length(unique(maps))", Map.of("maps", maps));
+    }
 }
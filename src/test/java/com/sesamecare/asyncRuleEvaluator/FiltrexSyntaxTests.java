@@ -4,7 +4,11 @@ import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
 import java.util.Map;
+import java.util.regex.Pattern;
 
 public class FiltrexSyntaxTests extends BaseFiltrexTest {
     @Test
@@ -19,6 +23,74 @@ public class FiltrexSyntaxTests extends BaseFiltrexTest {
         mathTest(7, "97 % 10");
     }
 
+    @Test
+    public void testWholeNumbers() {
+        // Overflowing the long fast path falls back to BigDecimal
+        assertEquals(new BigDecimal("9223372036854775808"), runFilter("9223372036854775807 + 1").asDecimal());
+        assertEquals(new BigDecimal("-9223372036854775809"), runFilter("-9223372036854775807 - 2").asDecimal());
+        assertEquals(new BigDecimal("85070591730234615847396907784232501249"), runFilter("9223372036854775807 * 9223372036854775807").asDecimal());
+        assertEquals(new BigDecimal("1267650600228229401496703205376"), runFilter("2 ^ 100").asDecimal());
+        mathTest(1024, "2 ^ 10");
+        mathTest(3.5, "7 / 2");
+        mathTest(-1, "-7 % 3");
+        assertThrows(ArithmeticException.class, () -> runFilter("1 / 0"));
+        assertThrows(ArithmeticException.class, () -> runFilter("1 % 0"));
+        assertThrows(ArithmeticException.class, () -> runFilter("1 / 3"));
+
+        // Whole numbers print and compare the same way as any other decimal
+        for (var code : new String[]{"10 * 10", "7 - 8", "0 * 5", "6 / 3"}) {
+            var value = runFilter(code);
+            assertEquals(new Value(value.asDecimal()).toString(), value.toString(), code);
+        }
+        assertEquals("2.0", runFilter("1.0 + 1").asDecimal().toString());
+        pass("3 > 2.5 and 2 == 2.0 and 10 < 11 and 5 >= 5 and 4 <= 4 and 1 != 2");
+        pass("length(100 * 1) == 3");
+    }
+
+    @Test
+    public void testSharedValues() {
+        var x = Map.of("x", new Value(2), "s", new Value("abc"));
+        assertSame(runFilter("x + 1", x), runFilter("length(s)", x));
+        assertSame(runFilter("x * 512", x), runFilter("2 ^ 10"));
+        assertSame(runFilter("round(2.6)"), runFilter("x + 1", x));
+        assertSame(x.get("x"), runFilter("max(x, 1)", x));
+        assertNotSame(runFilter("x * 513", x), runFilter("x * 513", x));
+        assertEquals("1.5", runFilter("ceil(1.5) - 0.5").toString());
+        assertEquals(Long.MAX_VALUE, runFilter("abs(-9223372036854775807)").asDecimal().longValueExact());
+        assertEquals(new BigDecimal("9223372036854775808"), runFilter("abs(-9223372036854775807 - 1)").asDecimal());
+    }
+
+    @Test
+    public void testNumericModes() {
+        var rounded = FiltrexOptions.DEFAULT.withNumericMode(NumericMode.exact(new MathContext(10, RoundingMode.HALF_EVEN)));
+        assertEquals("0.3333333333", new FiltrexExecutor("1 / 3", rounded).run(Map.of()).toString());
+        assertEquals("1.414213562", new FiltrexExecutor("sqrt(2)", rounded).run(Map.of()).toString());
+        assertEquals("0.5", new FiltrexExecutor("2 ^ -1", rounded).run(Map.of()).toString());
+        assertEquals("1", new FiltrexExecutor("10 % 3", rounded).run(Map.of()).toString());
+        assertEquals("1.000000000E+11", new FiltrexExecutor("100000000000 - 1", rounded).run(Map.of()).asDecimal().toString());
+        assertThrows(ArithmeticException.class, () -> new FiltrexExecutor("1 / 0", rounded).run(Map.of()));
+
+        var doubles = FiltrexOptions.DEFAULT.withNumericMode(NumericMode.DOUBLE);
+        assertEquals(0.30000000000000004, new FiltrexExecutor("0.1 + 0.2", doubles).run(Map.of()).asDecimal().doubleValue());
+        assertEquals(1.0 / 3, new FiltrexExecutor("1 / x", doubles).run(Map.of("x", new Value(3))).asDecimal().doubleValue());
+        assertEquals(Math.sqrt(2), new FiltrexExecutor("sqrt(2)", doubles).run(Map.of()).asDecimal().doubleValue());
+        assertEquals(1.5, new FiltrexExecutor("7.5 % 2", doubles).run(Map.of()).asDecimal().doubleValue());
+        assertEquals(2.0, new FiltrexExecutor("4 ^ 0.5", doubles).run(Map.of()).asDecimal().doubleValue());
+        assertEquals("1024", new FiltrexExecutor("2 ^ 10", doubles).run(Map.of()).toString());
+        assertEquals("1.5", new FiltrexExecutor("-x", doubles).run(Map.of("x", new Value(-1.5))).toString());
+        assertFalse(new FiltrexExecutor("0.1 + 0.2 == 0.3", doubles).run(Map.of()).asBoolean());
+        assertTrue(new FiltrexExecutor("0.1 + 0.2 > 0.3 and 3 > 2.5 and \"b\" > \"a\"", doubles).run(Map.of()).asBoolean());
+        assertThrows(ArithmeticException.class, () -> new FiltrexExecutor("1 / 0", doubles).run(Map.of()));
+        assertThrows(ArithmeticException.class, () -> new FiltrexExecutor("1 % 0.0", doubles).run(Map.of()));
+        assertThrows(ArithmeticException.class, () -> new FiltrexExecutor("sqrt(-1)", doubles).run(Map.of()));
+        assertThrows(ArithmeticException.class, () -> new FiltrexExecutor("10 ^ 400.5", doubles).run(Map.of()));
+
+        // The default is unchanged, and executors with different modes are cached apart
+        assertThrows(ArithmeticException.class, () -> runFilter("1 / 3"));
+        assertEquals("1.414", runFilter("sqrt(2)").toString());
+        assertNotSame(FiltrexExecutor.compile("1 / 3", doubles), FiltrexExecutor.compile("1 / 3", rounded));
+    }
+
     @Test
     public void testMathFunctions() {
         mathTest(5, "abs(-5)");
@@ -108,6 +180,28 @@ public class FiltrexSyntaxTests extends BaseFiltrexTest {
         fails("foo ~= \"^[hH]ello\"", Map.of("foo", new Value("goodbye")));
     }
 
+    @Test
+    public void testSimpleRegexes() {
+        assertInstanceOf(StringMatcher.Prefix.class, StringMatcher.compile("^hello"));
+        assertInstanceOf(StringMatcher.Suffix.class, StringMatcher.compile("@example\\.com$"));
+        assertInstanceOf(StringMatcher.Exact.class, StringMatcher.compile("^a b$"));
+        assertInstanceOf(StringMatcher.Contains.class, StringMatcher.compile("ell"));
+        assertInstanceOf(StringMatcher.AnyOf.class, StringMatcher.compile("he|she|his|hers"));
+        assertInstanceOf(StringMatcher.Regex.class, StringMatcher.compile("^a|b"));
+        assertInstanceOf(StringMatcher.Regex.class, StringMatcher.compile("\\d+"));
+
+        var patterns = new String[]{"", "^", "$", "^$", "^hello", "hello$", "^hello$", "ell", "l+", "a\\.b$",
+                "he|she|his|hers", "abcd|bc|x", "a|", "\\$5", "^[hH]ello"};
+        var texts = new String[]{"", "hello", "hello\n", "hello\r\n", "hello\r", "hello\n\n", "say hello",
+                "ushers", "abc", "a.b", "a.b\u2028", "axb", "$5", "\n"};
+        for (var pattern : patterns) {
+            var matcher = StringMatcher.compile(pattern);
+            for (var text : texts) {
+                assertEquals(Pattern.compile(pattern).matcher(text).find(), matcher.find(text), pattern + " on " + text);
+            }
+        }
+    }
+
     @Test
     public void testTernary() {
         mathTest(4,"1 > 2 ? 3 : 4");
@@ -121,6 +215,15 @@ public class FiltrexSyntaxTests extends BaseFiltrexTest {
         mathTest(9.4, program, Map.of("lowNumber", new Value(3.5), "a", new Value(10), "b", new Value(12), "foo", Value.FALSE));
     }
 
+    @Test
+    public void testExecutorReuse() {
+        var exec = new FiltrexExecutor("foo > 4 and bar == \"x\" ? 1 : 2");
+        assertEquals(1, exec.run(Map.of("foo", new Value(5), "bar", new Value("x"))).asDecimal().intValue());
+        assertEquals(2, exec.run(Map.of("foo", new Value(3), "bar", new Value("x"))).asDecimal().intValue());
+        assertEquals(2, exec.run(Map.of("foo", new Value(5), "bar", new Value("y"))).asDecimal().intValue());
+        assertEquals(1, exec.run(Map.of("foo", new Value(5), "bar", new Value("x"))).asDecimal().intValue());
+    }
+
     @Test
     public void testFunctions() {
         mathTest(3, "length(\"foo\")");
@@ -129,4 +232,54 @@ public class FiltrexSyntaxTests extends BaseFiltrexTest {
         pass("substr(\"foo\", -2, 2) == \"oo\"");
         pass("substr(\"foo\", 0, 2) == \"fo\"");
     }
+
+    @Test
+    public void testConstantFolding() {
+        var folded = FiltrexCompiler.compile("1 == 1 and x > 2 * 60 * 60");
+        var and = assertInstanceOf(FiltrexNode.And.class, folded);
+        assertInstanceOf(FiltrexNode.Literal.class, and.lhs);
+        var greater = assertInstanceOf(FiltrexNode.GreaterThan.class, and.rhs);
+        assertEquals(7200, ((FiltrexNode.Literal) greater.rhs).value.asDecimal().intValue());
+
+        assertInstanceOf(FiltrexNode.Literal.class, FiltrexCompiler.compile("abs(-3) + sqrt(16) + length(\"abc\")"));
+        assertInstanceOf(FiltrexNode.Literal.class, FiltrexCompiler.compile("[1, 2, 3]"));
+        assertInstanceOf(FiltrexNode.Symbol.class, FiltrexCompiler.compile("1 < 2 ? x : y"));
+        assertInstanceOf(FiltrexNode.FunctionCall.class, FiltrexCompiler.compile("random(2)"));
+        assertInstanceOf(FiltrexNode.Divide.class, FiltrexCompiler.compile("1 / 0"));
+
+        // A folded array is shared between runs, so it has to come back unchanged every time
+        var exec = new FiltrexExecutor("[1, 2, 3]");
+        assertThrows(UnsupportedOperationException.class, () -> exec.run(Map.of()).getArray().add(new Value(4)));
+        assertEquals(3, exec.run(Map.of()).getArray().size());
+        mathTest(10, "abs(-3) + sqrt(16) + length(\"abc\")");
+        mathTest(5, "x in (1, 2) ? x + 3 : 0", Map.of("x", new Value(2)));
+    }
+
+    @Test
+    public void testSymbolPaths() {
+        var context = Map.of(
+                "first name", new Value("Jo"),
+                "it's", new Value(1),
+                "a.b", new Value(2),
+                "a", new Value(Map.of("b", new Value(3), "c", Value.func(args -> new Value(4))))
+        );
+        pass("'first name' == \"Jo\"", context);
+        pass("'it\\'s'", context);
+        mathTest(2, "'a.b'", context);
+        mathTest(3, "a.b", context);
+        mathTest(4, "a.c()", context);
+        assertEquals(ValueType.NULL, runFilter("a.missing.b", context).getType());
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("a..b"));
+        assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("a.b. == 1"));
+    }
+
+    @Test
+    public void testSyntaxErrors() {
+        for (var rule : new String[]{"x >", "1 +", "x in", "foo(", "(", "", "a ? b", "1 2", "x == #"}) {
+            var e = assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor(rule), rule);
+            assertTrue(e.getMessage().startsWith("Syntax error"), rule + ": " + e.getMessage());
+        }
+        var e = assertThrows(FiltrexRuntimeException.class, () -> new FiltrexExecutor("a and\n  > 3"));
+        assertTrue(e.getMessage().contains("line 2, column 3"), e.getMessage());
+    }
 }